@@ -0,0 +1,98 @@
+package xyz.skyfalls.hidedebris.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import xyz.skyfalls.hidedebris.BlockClasses;
+import xyz.skyfalls.hidedebris.ChunkProcessor;
+import xyz.skyfalls.hidedebris.DebrisSet;
+import xyz.skyfalls.hidedebris.IRegionAccess;
+
+import java.util.concurrent.TimeUnit;
+
+// one operation processes one chunk, so the scores are ns/chunk
+// allocation rate: java -jar target/benchmarks.jar ChunkProcessorBenchmark -prof gc
+// benchmarks that write reset the chunk afterwards, which costs a few ns per written block
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkProcessorBenchmark {
+    // different chunks per invocation, so branch prediction can't learn a single layout
+    private static final int CHUNKS = 64;
+    private final ChunkProcessor processor = new ChunkProcessor(BlockClasses.DEFAULT);
+    @Param({"30", "60", "119"})
+    private int hideDebrisBelow;
+    @Param({"0", "3"})
+    private int extraBlocks;
+    private IRegionAccess.ArrayAdaptor[] chunks;
+    // the same chunks after pushDown, as hideExposed sees them
+    private IRegionAccess.ArrayAdaptor[] pushedChunks;
+    private DebrisSet[] scanned;
+    private DebrisSet[] pushed;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        chunks = new IRegionAccess.ArrayAdaptor[CHUNKS];
+        pushedChunks = new IRegionAccess.ArrayAdaptor[CHUNKS];
+        scanned = new DebrisSet[CHUNKS];
+        pushed = new DebrisSet[CHUNKS];
+        for (int i = 0; i < CHUNKS; i++) {
+            chunks[i] = SyntheticNether.generate(i);
+            chunks[i].commit();
+            scanned[i] = processor.scanDebris(chunks[i], SyntheticNether.MIN_Y, hideDebrisBelow, extraBlocks);
+            pushedChunks[i] = SyntheticNether.generate(i);
+            pushed[i] = processor.pushDown(pushedChunks[i], scanned[i]);
+            pushedChunks[i].commit();
+        }
+    }
+
+    private int nextChunk() {
+        next = (next + 1) % CHUNKS;
+        return next;
+    }
+
+    @Benchmark
+    public DebrisSet scanDebris() {
+        var chunk = chunks[nextChunk()];
+        return processor.scanDebris(chunk, SyntheticNether.MIN_Y, hideDebrisBelow, extraBlocks);
+    }
+
+    @Benchmark
+    public DebrisSet pushDown() {
+        int i = nextChunk();
+        var result = processor.pushDown(chunks[i], scanned[i]);
+        chunks[i].reset();
+        return result;
+    }
+
+    @Benchmark
+    public DebrisSet hideExposed() {
+        int i = nextChunk();
+        var result = processor.hideExposed(pushedChunks[i], pushed[i]);
+        pushedChunks[i].reset();
+        return result;
+    }
+
+    @Benchmark
+    public DebrisSet all() {
+        var chunk = chunks[nextChunk()];
+        var debris = processor.scanDebris(chunk, SyntheticNether.MIN_Y, hideDebrisBelow, extraBlocks);
+        var moved = processor.pushDown(chunk, debris);
+        var hidden = processor.hideExposed(chunk, moved);
+        chunk.reset();
+        return hidden;
+    }
+}
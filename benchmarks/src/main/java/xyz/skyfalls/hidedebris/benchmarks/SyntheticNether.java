@@ -0,0 +1,97 @@
+package xyz.skyfalls.hidedebris.benchmarks;
+
+import org.bukkit.Material;
+import xyz.skyfalls.hidedebris.IRegionAccess;
+
+import java.util.Random;
+
+// 3x3 chunks of nether-like terrain: netherrack with patches of the other surround blocks, carved caves,
+// a lava sea up to y 31, lava pockets, and debris placed like the vanilla features
+// (a large vein at y 8..24 and a small one at y 8..119 per chunk, never touching air)
+public class SyntheticNether {
+    public static final int MIN_Y = 0;
+    public static final int MAX_Y = 127;
+    private static final int LAVA_LEVEL = 31;
+    private static final Material[] PATCHES = {
+            Material.SOUL_SAND, Material.GRAVEL, Material.BLACKSTONE, Material.BASALT, Material.MAGMA_BLOCK,
+            Material.NETHER_QUARTZ_ORE, Material.NETHER_GOLD_ORE};
+
+    public static IRegionAccess.ArrayAdaptor generate(long seed) {
+        var random = new Random(seed);
+        var chunk = new IRegionAccess.ArrayAdaptor(MIN_Y, MAX_Y);
+        for (int y = MIN_Y; y <= MAX_Y; y++) {
+            for (int x = -16; x < 32; x++) {
+                for (int z = -16; z < 32; z++) {
+                    boolean bedrock = y < MIN_Y + 5 && random.nextInt(5) >= y - MIN_Y
+                            || y > MAX_Y - 5 && random.nextInt(5) >= MAX_Y - y;
+                    chunk.setBlockType(x, y, z, bedrock ? Material.BEDROCK : Material.NETHERRACK);
+                }
+            }
+        }
+        for (int i = 0; i < 60; i++) {
+            sphere(chunk, random, 2 + random.nextInt(3), PATCHES[random.nextInt(PATCHES.length)],
+                    MIN_Y + 5 + random.nextInt(MAX_Y - MIN_Y - 10));
+        }
+        for (int i = 0; i < 40; i++) {
+            sphere(chunk, random, 3 + random.nextInt(6), null, MIN_Y + 5 + random.nextInt(MAX_Y - MIN_Y - 10));
+        }
+        // lava pockets around the debris heights, they are what exposes debris to players
+        for (int i = 0; i < 300; i++) {
+            sphere(chunk, random, 1 + random.nextInt(3), Material.LAVA, 8 + random.nextInt(40));
+        }
+        for (int chunkX = -1; chunkX <= 1; chunkX++) {
+            for (int chunkZ = -1; chunkZ <= 1; chunkZ++) {
+                vein(chunk, random, chunkX, chunkZ, 8 + random.nextInt(9) + random.nextInt(9), 3);
+                vein(chunk, random, chunkX, chunkZ, 8 + random.nextInt(112), 2);
+            }
+        }
+        return chunk;
+    }
+
+    // a null material carves a cave, filled with lava below the lava level
+    private static void sphere(IRegionAccess.ArrayAdaptor chunk, Random random, int radius, Material material,
+                               int cy) {
+        int cx = -16 + random.nextInt(48);
+        int cz = -16 + random.nextInt(48);
+        for (int x = cx - radius; x <= cx + radius; x++) {
+            for (int y = cy - radius; y <= cy + radius; y++) {
+                for (int z = cz - radius; z <= cz + radius; z++) {
+                    int dx = x - cx;
+                    int dy = y - cy;
+                    int dz = z - cz;
+                    if (dx * dx + dy * dy + dz * dz > radius * radius || chunk.getBlockType(x, y, z) == Material.BEDROCK) {
+                        continue;
+                    }
+                    if (material != null) {
+                        chunk.setBlockType(x, y, z, material);
+                    } else {
+                        chunk.setBlockType(x, y, z, y <= LAVA_LEVEL ? Material.LAVA : Material.AIR);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void vein(IRegionAccess.ArrayAdaptor chunk, Random random, int chunkX, int chunkZ, int y,
+                             int size) {
+        int x = chunkX * 16 + random.nextInt(16);
+        int z = chunkZ * 16 + random.nextInt(16);
+        for (int i = 0; i < size; i++) {
+            if (chunk.getBlockType(x, y, z) != Material.AIR && chunk.getBlockType(x, y, z) != Material.LAVA
+                    && chunk.getBlockType(x, y, z) != Material.BEDROCK && !touchesAir(chunk, x, y, z)) {
+                chunk.setBlockType(x, y, z, Material.ANCIENT_DEBRIS);
+            }
+            switch (random.nextInt(3)) {
+                case 0 -> x += random.nextBoolean() ? 1 : -1;
+                case 1 -> y += random.nextBoolean() ? 1 : -1;
+                default -> z += random.nextBoolean() ? 1 : -1;
+            }
+        }
+    }
+
+    private static boolean touchesAir(IRegionAccess.ArrayAdaptor chunk, int x, int y, int z) {
+        return chunk.getBlockType(x + 1, y, z) == Material.AIR || chunk.getBlockType(x - 1, y, z) == Material.AIR
+                || chunk.getBlockType(x, y + 1, z) == Material.AIR || chunk.getBlockType(x, y - 1, z) == Material.AIR
+                || chunk.getBlockType(x, y, z + 1) == Material.AIR || chunk.getBlockType(x, y, z - 1) == Material.AIR;
+    }
+}
@@ -0,0 +1,106 @@
+package xyz.skyfalls.hidedebris;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// the block sets from the config compiled into one byte of flags per material, indexed by ordinal,
+// so classifying a block in the scan loops is a single array read
+public class BlockClasses {
+    private static final byte TARGET = 1;
+    private static final byte SURROUND = 2;
+    private static final byte EXPOSING = 4;
+    public static final BlockClasses DEFAULT = new BlockClasses(
+            List.of(Material.ANCIENT_DEBRIS),
+            List.of(Material.NETHERRACK, Material.SOUL_SAND, Material.MAGMA_BLOCK,
+                    Material.GRAVEL, Material.BLACKSTONE, Material.BASALT,
+                    Material.NETHER_QUARTZ_ORE, Material.NETHER_GOLD_ORE),
+            List.of(Material.LAVA));
+    private final byte[] flags = new byte[Material.values().length];
+    private final List<Material> targets;
+    private final List<Material> surround;
+    private final List<Material> exposing;
+
+    public BlockClasses(List<Material> targets, List<Material> surround, List<Material> exposing) {
+        if (targets.isEmpty()) {
+            throw new RuntimeException("\"target-blocks\" should not be empty");
+        }
+        if (surround.isEmpty()) {
+            throw new RuntimeException("\"surround-blocks\" should not be empty");
+        }
+        this.targets = List.copyOf(targets);
+        this.surround = List.copyOf(surround);
+        this.exposing = List.copyOf(exposing);
+        targets.forEach(m -> flags[m.ordinal()] |= TARGET);
+        surround.forEach(m -> flags[m.ordinal()] |= SURROUND);
+        exposing.forEach(m -> flags[m.ordinal()] |= EXPOSING);
+        for (var material : targets) {
+            if ((flags[material.ordinal()] & (SURROUND | EXPOSING)) != 0) {
+                throw new RuntimeException(material.getKey() + " can't be both a target and a surround or exposing block");
+            }
+        }
+    }
+
+    // missing keys keep the default set
+    public static BlockClasses fromConfig(FileConfiguration config) {
+        return new BlockClasses(
+                parse(config, "target-blocks", DEFAULT.targets),
+                parse(config, "surround-blocks", DEFAULT.surround),
+                parse(config, "exposing-blocks", DEFAULT.exposing));
+    }
+
+    private static List<Material> parse(FileConfiguration config, String key, List<Material> defaults) {
+        if (!config.contains(key)) {
+            return defaults;
+        }
+        List<Material> materials = new ArrayList<>();
+        for (var name : config.getStringList(key)) {
+            var material = Material.matchMaterial(name);
+            if (material == null || !material.isBlock()) {
+                throw new RuntimeException("\"" + key + "\" contains " + name + " which is not a block");
+            }
+            materials.add(material);
+        }
+        return materials;
+    }
+
+    public boolean isTarget(Material material) {
+        return material != null && (flags[material.ordinal()] & TARGET) != 0;
+    }
+
+    public boolean isSurround(Material material) {
+        return material != null && (flags[material.ordinal()] & SURROUND) != 0;
+    }
+
+    public boolean isExposing(Material material) {
+        return material != null && (flags[material.ordinal()] & EXPOSING) != 0;
+    }
+
+    public List<Material> getTargets() {
+        return targets;
+    }
+
+    public List<Material> getSurround() {
+        return surround;
+    }
+
+    public List<Material> getExposing() {
+        return exposing;
+    }
+
+    // patches exposed faces when no surround block is next to the target
+    public Material getFallback() {
+        return surround.get(0);
+    }
+
+    // changes whenever the target set does, for caches that only hold for one set
+    public int targetsHash() {
+        int hash = 0;
+        for (var material : targets) {
+            hash = hash * 31 + material.getKey().toString().hashCode();
+        }
+        return hash;
+    }
+}
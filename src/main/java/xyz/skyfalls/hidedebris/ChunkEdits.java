@@ -0,0 +1,117 @@
+package xyz.skyfalls.hidedebris;
+
+import org.bukkit.Material;
+
+import java.util.Arrays;
+
+// "set block at (x, y, z) to updated if it is still expected" operations relative to a center chunk,
+// computed off-thread and applied on the main thread
+public class ChunkEdits {
+    private static final int COORD_MASK = 0x3f;
+    private static final int COORD_OFFSET = 32;
+    private static final int Y_OFFSET = 2048;
+    private int[] positions = new int[16];
+    private Material[] expected = new Material[16];
+    private Material[] updated = new Material[16];
+    private int size;
+
+    private static int pack(int x, int y, int z) {
+        return (y + Y_OFFSET) << 12 | (x + COORD_OFFSET) << 6 | (z + COORD_OFFSET);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int indexOf(int x, int y, int z) {
+        int pos = pack(x, y, z);
+        for (int i = size - 1; i >= 0; i--) {
+            if (positions[i] == pos) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public Material expected(int i) {
+        return expected[i];
+    }
+
+    public Material updated(int i) {
+        return updated[i];
+    }
+
+    // repeated writes to a block keep the first expected material
+    public void record(int x, int y, int z, Material expectedType, Material updatedType) {
+        int i = indexOf(x, y, z);
+        if (i >= 0) {
+            updated[i] = updatedType;
+            return;
+        }
+        if (size == positions.length) {
+            positions = Arrays.copyOf(positions, size * 2);
+            expected = Arrays.copyOf(expected, size * 2);
+            updated = Arrays.copyOf(updated, size * 2);
+        }
+        positions[size] = pack(x, y, z);
+        expected[size] = expectedType;
+        updated[size] = updatedType;
+        size++;
+    }
+
+    // edits that end on the material they started with are still checked by apply, but never written
+    public int countWrites() {
+        int writes = 0;
+        for (int i = 0; i < size; i++) {
+            if (expected[i] != updated[i]) {
+                writes++;
+            }
+        }
+        return writes;
+    }
+
+    // writes nothing and returns false if any block changed since the edits were computed
+    public boolean apply(IRegionAccess.Outbounds access) {
+        for (int i = 0; i < size; i++) {
+            if (access.getBlockType(x(i), y(i), z(i)) != expected[i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (expected[i] != updated[i]) {
+                access.setBlockType(x(i), y(i), z(i), updated[i]);
+            }
+        }
+        return true;
+    }
+
+    // writes every block that is still expected regardless of the others, returns how many were written
+    public int applyMatching(IRegionAccess.Outbounds access) {
+        int written = 0;
+        for (int i = 0; i < size; i++) {
+            if (access.getBlockType(x(i), y(i), z(i)) == expected[i]) {
+                if (expected[i] != updated[i]) {
+                    access.setBlockType(x(i), y(i), z(i), updated[i]);
+                }
+                written++;
+            }
+        }
+        return written;
+    }
+
+    public int x(int i) {
+        return (positions[i] >>> 6 & COORD_MASK) - COORD_OFFSET;
+    }
+
+    public int y(int i) {
+        return (positions[i] >>> 12) - Y_OFFSET;
+    }
+
+    public int z(int i) {
+        return (positions[i] & COORD_MASK) - COORD_OFFSET;
+    }
+}
@@ -1,88 +1,133 @@
 package xyz.skyfalls.hidedebris;
 
 import org.bukkit.Material;
-import xyz.skyfalls.hidedebris.utils.Vec3i;
 
-import java.util.*;
-import java.util.stream.Collectors;
+import java.util.Arrays;
 
 public class ChunkProcessor {
-    private final static Set<Material> TYPES_SURROUND = new HashSet<>(Set.of(
-            Material.NETHERRACK, Material.SOUL_SAND, Material.MAGMA_BLOCK,
-            Material.GRAVEL, Material.BLACKSTONE, Material.BASALT,
-            Material.NETHER_QUARTZ_ORE, Material.NETHER_GOLD_ORE));
-    private final static Set<Material> TYPES_EXPOSED = new HashSet<>(Set.of(Material.LAVA));
+    // neighbour offsets, prioritizing up and down for better camo
+    private final static int[] AROUND_X = {0, 0, -1, 0, 1, 0};
+    private final static int[] AROUND_Y = {1, -1, 0, 0, 0, 0};
+    private final static int[] AROUND_Z = {0, 0, 0, -1, 0, 1};
+    private final BlockClasses classes;
 
-    public static HashMap<Vec3i, Boolean> scanDebris(IRegionAccess.Inbounds chunk, int minY, int maxY) {
+    public ChunkProcessor(BlockClasses classes) {
+        this.classes = classes;
+    }
+
+    public DebrisSet scanDebris(IRegionAccess.Inbounds chunk, int minY, int maxY) {
         return scanDebris(chunk, minY, maxY, 0);
     }
 
-    // returns all ancient debris, and a pushable flag
+    // returns all target blocks sorted by y, flagged if pushable
     // extraBlocks is to cover newly generated ore decoration which can go across chunk borders,
     // requires outbounds access if extraBlocks > 0
-    public static HashMap<Vec3i, Boolean> scanDebris(IRegionAccess chunk, int minY, int maxY, int extraBlocks) {
-        HashMap<Vec3i, Boolean> debris = new HashMap<>();
+    public DebrisSet scanDebris(IRegionAccess chunk, int minY, int maxY, int extraBlocks) {
+        DebrisSet debris = new DebrisSet();
+        int width = 16 + extraBlocks * 2;
+        // per column, the y of the last pushable debris found, towers are pushable if the debris above is
+        int[] pushableY = new int[width * width];
+        Arrays.fill(pushableY, Integer.MIN_VALUE);
         // scan top to bottom
-        for (int y = maxY; y >= minY; y--) {
-            for (int x = -extraBlocks; x < 16 + extraBlocks; x++) {
-                for (int z = -extraBlocks; z < 16 + extraBlocks; z++) {
-                    if (Material.ANCIENT_DEBRIS == chunk.getBlockType(x, y, z)) {
-                        var pos = new Vec3i(x, y, z);
-                        debris.put(pos, false);
-                        // needs lava above tower
-                        if (!(TYPES_EXPOSED.contains(chunk.getBlockType(x, y + 1, z)) || debris.getOrDefault(pos.up(), false))) {
+        for (int sectionY = maxY >> 4; sectionY >= minY >> 4; sectionY--) {
+            // section info only covers the center chunk
+            if (extraBlocks == 0 && !sectionMayContainTarget(chunk, sectionY)) {
+                continue;
+            }
+            for (int y = Math.min(maxY, sectionY * 16 + 15); y >= Math.max(minY, sectionY * 16); y--) {
+                for (int x = -extraBlocks; x < 16 + extraBlocks; x++) {
+                    for (int z = -extraBlocks; z < 16 + extraBlocks; z++) {
+                        if (!classes.isTarget(chunk.getBlockType(x, y, z))) {
                             continue;
                         }
-                        for (int bottom = y - 1; bottom >= minY; bottom--) {
-                            // moved down, found another debris, move down again
-                            if (Material.ANCIENT_DEBRIS == chunk.getBlockType(x, bottom, z)) {
-                                continue;
-                            }
-                            // have space below the entire stack
-                            if (TYPES_SURROUND.contains(chunk.getBlockType(x, bottom, z))) {
-                                debris.put(pos, true);
+                        int column = (x + extraBlocks) * width + z + extraBlocks;
+                        boolean pushable = false;
+                        // needs lava above tower
+                        if (classes.isExposing(chunk.getBlockType(x, y + 1, z)) || pushableY[column] == y + 1) {
+                            for (int bottom = y - 1; bottom >= minY; bottom--) {
+                                // moved down, found another debris, move down again
+                                if (classes.isTarget(chunk.getBlockType(x, bottom, z))) {
+                                    continue;
+                                }
+                                // have space below the entire stack
+                                pushable = classes.isSurround(chunk.getBlockType(x, bottom, z));
+                                // other block interrupting
+                                break;
                             }
-                            // other block interrupting
-                            break;
                         }
+                        if (pushable) {
+                            pushableY[column] = y;
+                        }
+                        debris.add(x, y, z, pushable);
                     }
                 }
             }
         }
+        debris.sort();
         return debris;
     }
 
-    // returns all ancient debris after pushing them down
-    public static Set<Vec3i> pushDown(IRegionAccess.Inbounds chunk, HashMap<Vec3i, Boolean> debris) {
-        return debris.entrySet().stream()
-                .sorted(Map.Entry.comparingByKey(Comparator.comparingInt(Vec3i::y)))
-                .map(e -> {
-                    if (!e.getValue()) {
-                        return e.getKey();
-                    }
-                    var loc = e.getKey();
-                    var current = chunk.getBlockType(loc.x(), loc.y(), loc.z());
-                    var below = chunk.getBlockType(loc.x(), loc.y() - 1, loc.z());
-                    chunk.setBlockType(loc.x(), loc.y(), loc.z(), below);
-                    chunk.setBlockType(loc.x(), loc.y() - 1, loc.z(), current);
-                    return loc.down();
-                }).collect(Collectors.toSet());
+    private boolean sectionMayContainTarget(IRegionAccess chunk, int sectionY) {
+        for (var target : classes.getTargets()) {
+            if (chunk.sectionMayContain(sectionY, target)) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    public static List<Vec3i> hideExposed(IRegionAccess.Outbounds chunk, Set<Vec3i> debris) {
-        return debris.stream().
-                filter(block -> block.around().anyMatch(e -> TYPES_EXPOSED.contains(chunk.getBlockType(e))))
-                .peek(block -> {
-                    var copy = block.around()
-                            .map(chunk::getBlockType)
-                            .filter(TYPES_SURROUND::contains)
-                            .findFirst()
-                            .orElse(Material.NETHERRACK);
-                    block.around()
-                            .filter(e -> TYPES_EXPOSED.contains(chunk.getBlockType(e)))
-                            .forEach(pos -> {
-                                chunk.setBlockType(pos, copy);
-                            });
-                }).toList();
+    // returns all target blocks after pushing them down, flagged if moved
+    public DebrisSet pushDown(IRegionAccess.Inbounds chunk, DebrisSet debris) {
+        DebrisSet result = new DebrisSet(debris.size());
+        // bottom first, so every tower block moves into the space freed below it
+        for (int i = 0; i < debris.size(); i++) {
+            int x = debris.x(i);
+            int y = debris.y(i);
+            int z = debris.z(i);
+            if (!debris.flag(i)) {
+                result.add(x, y, z, false);
+                continue;
+            }
+            var current = chunk.getBlockType(x, y, z);
+            var below = chunk.getBlockType(x, y - 1, z);
+            chunk.setBlockType(x, y, z, below);
+            chunk.setBlockType(x, y - 1, z, current);
+            result.add(x, y - 1, z, true);
+        }
+        result.sort();
+        return result;
+    }
+
+    // returns the debris that had exposed faces patched
+    public DebrisSet hideExposed(IRegionAccess.Outbounds chunk, DebrisSet debris) {
+        DebrisSet hidden = new DebrisSet();
+        for (int i = 0; i < debris.size(); i++) {
+            int x = debris.x(i);
+            int y = debris.y(i);
+            int z = debris.z(i);
+            int exposedFaces = 0;
+            Material copy = null;
+            for (int face = 0; face < AROUND_X.length; face++) {
+                var type = chunk.getBlockType(x + AROUND_X[face], y + AROUND_Y[face], z + AROUND_Z[face]);
+                if (classes.isExposing(type)) {
+                    exposedFaces |= 1 << face;
+                } else if (copy == null && classes.isSurround(type)) {
+                    copy = type;
+                }
+            }
+            if (exposedFaces == 0) {
+                continue;
+            }
+            if (copy == null) {
+                copy = classes.getFallback();
+            }
+            for (int face = 0; face < AROUND_X.length; face++) {
+                if ((exposedFaces & 1 << face) != 0) {
+                    chunk.setBlockType(x + AROUND_X[face], y + AROUND_Y[face], z + AROUND_Z[face], copy);
+                }
+            }
+            hidden.add(x, y, z, false);
+        }
+        return hidden;
     }
 }
@@ -0,0 +1,146 @@
+package xyz.skyfalls.hidedebris;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+// where the migrator gets its chunks from, loads complete with the chunk, or with null if it was never generated
+// or is still a proto chunk, in which case it was unloaded again
+// every load holds the chunk until it is released, requests for the same chunk overlap, so holds are counted
+// whether it is ours to unload is decided by the first hold, a chunk that was already loaded then is never unloaded
+public abstract class ChunkSource {
+    private final Map<ChunkPos, Hold> holds = new ConcurrentHashMap<>();
+
+    public abstract CompletableFuture<Chunk> load(World world, int chunkX, int chunkZ);
+
+    // loads run off the main thread and overlap, so more of them can be in flight
+    public abstract boolean isAsync();
+
+    // paper and its forks load chunks asynchronously, spigot only loads them synchronously
+    public static ChunkSource detect(MainThreadExecutor mainThread) {
+        var async = Async.find();
+        return async != null ? async : new MainThread(mainThread.newLane());
+    }
+
+    // main thread, drops one hold and returns whether it was the last one on a chunk this source loaded,
+    // only then may it be unloaded
+    public boolean release(Chunk chunk) {
+        return release(chunk.getWorld(), chunk.getX(), chunk.getZ());
+    }
+
+    // taken before the load starts, so a hold released while another load is in flight keeps the chunk
+    protected void acquire(World world, int chunkX, int chunkZ) {
+        holds.compute(new ChunkPos(world, chunkX, chunkZ), (pos, hold) -> hold == null
+                ? new Hold(1, !world.isChunkLoaded(chunkX, chunkZ))
+                : new Hold(hold.count() + 1, hold.owned()));
+    }
+
+    protected boolean release(World world, int chunkX, int chunkZ) {
+        boolean[] unload = new boolean[1];
+        holds.computeIfPresent(new ChunkPos(world, chunkX, chunkZ), (pos, hold) -> {
+            if (hold.count() > 1) {
+                return new Hold(hold.count() - 1, hold.owned());
+            }
+            unload[0] = hold.owned();
+            return null;
+        });
+        return unload[0];
+    }
+
+    // a load that failed or found nothing has no chunk to hand out, its hold is dropped here
+    @Nullable
+    protected Chunk generatedOrRelease(World world, int chunkX, int chunkZ, @Nullable Chunk chunk) {
+        if (chunk != null && chunk.isGenerated()) {
+            return chunk;
+        }
+        if (release(world, chunkX, chunkZ) && chunk != null) {
+            chunk.unload();
+        }
+        return null;
+    }
+
+    private record ChunkPos(World world, int x, int z) {
+    }
+
+    private record Hold(int count, boolean owned) {
+    }
+
+    // World.getChunkAtAsync, which completes on the main thread once the chunk was read on the server's io threads
+    public static class Async extends ChunkSource {
+        private final MethodHandle getChunkAtAsync;
+
+        private Async(MethodHandle getChunkAtAsync) {
+            this.getChunkAtAsync = getChunkAtAsync;
+        }
+
+        @Nullable
+        public static Async find() {
+            try {
+                return new Async(MethodHandles.publicLookup().findVirtual(World.class, "getChunkAtAsync",
+                        MethodType.methodType(CompletableFuture.class, int.class, int.class, boolean.class)));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                return null;
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public CompletableFuture<Chunk> load(World world, int chunkX, int chunkZ) {
+            acquire(world, chunkX, chunkZ);
+            CompletableFuture<Chunk> future;
+            try {
+                future = (CompletableFuture<Chunk>) getChunkAtAsync.invoke(world, chunkX, chunkZ, false);
+            } catch (Throwable e) {
+                release(world, chunkX, chunkZ);
+                return CompletableFuture.failedFuture(e);
+            }
+            return future.whenComplete((chunk, ex) -> {
+                if (ex != null) {
+                    release(world, chunkX, chunkZ);
+                }
+            }).thenApply(chunk -> generatedOrRelease(world, chunkX, chunkZ, chunk));
+        }
+
+        @Override
+        public boolean isAsync() {
+            return true;
+        }
+    }
+
+    // synchronous loads queued on the main thread executor, so they count against its tick budget
+    public static class MainThread extends ChunkSource {
+        private final Executor mainThread;
+
+        public MainThread(Executor mainThread) {
+            this.mainThread = mainThread;
+        }
+
+        @Override
+        public CompletableFuture<Chunk> load(World world, int chunkX, int chunkZ) {
+            return CompletableFuture.supplyAsync(() -> {
+                acquire(world, chunkX, chunkZ);
+                Chunk chunk;
+                try {
+                    chunk = world.getChunkAt(chunkX, chunkZ, false);
+                } catch (RuntimeException e) {
+                    release(world, chunkX, chunkZ);
+                    throw e;
+                }
+                return generatedOrRelease(world, chunkX, chunkZ, chunk);
+            }, mainThread);
+        }
+
+        @Override
+        public boolean isAsync() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package xyz.skyfalls.hidedebris;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// bounds the number of chunks the migrator keeps loaded at the same time
+public class ChunkWindow {
+    private final Semaphore permits;
+    private final AtomicInteger loaded = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+
+    public ChunkWindow(int maxLoadedChunks) {
+        this.permits = new Semaphore(maxLoadedChunks);
+    }
+
+    // call before loading a chunk, blocks while the window is full
+    public void acquire() throws InterruptedException {
+        permits.acquire();
+        peak.accumulateAndGet(loaded.incrementAndGet(), Math::max);
+    }
+
+    // call after unloading a chunk
+    public void release() {
+        loaded.decrementAndGet();
+        permits.release();
+    }
+
+    public int getLoaded() {
+        return loaded.get();
+    }
+
+    public int getPeak() {
+        return peak.get();
+    }
+}
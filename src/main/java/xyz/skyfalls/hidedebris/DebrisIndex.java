@@ -0,0 +1,33 @@
+package xyz.skyfalls.hidedebris;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.BitSet;
+
+// chunks known to hold no target blocks at or below hide-debris-below, per world
+// a region is indexed once it has a slot, chunks without a bit are unknown and migrated through the server
+// the index is rebuilt when hide-debris-below or the target blocks change
+public class DebrisIndex extends RegionBitmapFile {
+    private static final int MAGIC = 0x48444958;
+
+    private DebrisIndex(Path path, int parameter) throws IOException {
+        super(path, MAGIC, parameter);
+    }
+
+    public static DebrisIndex open(Path cache, String worldName, int hideDebrisBelow, BlockClasses classes)
+            throws IOException {
+        return new DebrisIndex(cache.resolve(worldName + ".index"), hideDebrisBelow * 31 + classes.targetsHash());
+    }
+
+    public boolean isIndexed(int regionX, int regionZ) {
+        return hasRegion(regionX, regionZ);
+    }
+
+    public boolean isClean(int chunkX, int chunkZ) {
+        return get(chunkX, chunkZ);
+    }
+
+    public void putClean(int regionX, int regionZ, BitSet clean) throws IOException {
+        putRegion(regionX, regionZ, clean.toLongArray());
+    }
+}
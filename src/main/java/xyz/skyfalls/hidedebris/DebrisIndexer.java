@@ -0,0 +1,88 @@
+package xyz.skyfalls.hidedebris;
+
+import org.bukkit.Material;
+import xyz.skyfalls.hidedebris.anvil.AnvilChunk;
+import xyz.skyfalls.hidedebris.anvil.RegionFile;
+import xyz.skyfalls.hidedebris.utils.RegionUtils;
+import xyz.skyfalls.hidedebris.utils.Vec2i;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Predicate;
+
+// finds chunks without target blocks straight from the region files, without going through the server
+// only the section palettes are decoded, the server may be writing the file at the same time so any chunk
+// that fails to decode or turns out to be another chunk is left unknown
+public class DebrisIndexer {
+    private final ExecutorService pool;
+    private final int hideDebrisBelow;
+    private final BlockClasses classes;
+
+    public DebrisIndexer(ExecutorService pool, int hideDebrisBelow, BlockClasses classes) {
+        this.pool = pool;
+        this.hideDebrisBelow = hideDebrisBelow;
+        this.classes = classes;
+    }
+
+    public BitSet findCleanChunks(Path regionFolder, Vec2i region) throws IOException {
+        return findChunks(regionFolder, region, chunk -> !contains(chunk, classes.getTargets(), chunk.getMinY()));
+    }
+
+    // chunks a config change doesn't reach, none of the rescans finds its materials in them
+    public BitSet findUnaffectedChunks(Path regionFolder, Vec2i region, List<MigrationParams.Rescan> rescans)
+            throws IOException {
+        return findChunks(regionFolder, region, chunk -> rescans.stream()
+                .noneMatch(e -> contains(chunk, e.materials(), Math.max(chunk.getMinY(), e.fromY()))));
+    }
+
+    // reads the file on the calling thread and decompresses the chunks on the pool
+    private BitSet findChunks(Path regionFolder, Vec2i region, Predicate<AnvilChunk> filter) throws IOException {
+        var file = RegionFile.read(RegionUtils.getRegionFile(regionFolder, region));
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(RegionFile.CHUNKS);
+        for (int i = 0; i < RegionFile.CHUNKS; i++) {
+            int index = i;
+            int chunkX = region.x() * 32 + i % 32;
+            int chunkZ = region.z() * 32 + i / 32;
+            futures.add(file.hasChunk(index)
+                    ? CompletableFuture.supplyAsync(() -> test(file, index, chunkX, chunkZ, filter), pool)
+                    : CompletableFuture.completedFuture(false));
+        }
+        var clean = new BitSet(RegionFile.CHUNKS);
+        for (int i = 0; i < RegionFile.CHUNKS; i++) {
+            if (futures.get(i).join()) {
+                clean.set(i);
+            }
+        }
+        return clean;
+    }
+
+    private boolean test(RegionFile region, int index, int chunkX, int chunkZ, Predicate<AnvilChunk> filter) {
+        try {
+            var nbt = region.readChunk(index);
+            if (nbt == null) {
+                return false;
+            }
+            var chunk = new AnvilChunk(nbt);
+            return chunk.isAt(chunkX, chunkZ) && chunk.isFullyGenerated() && filter.test(chunk);
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private boolean contains(AnvilChunk chunk, Collection<Material> materials, int fromY) {
+        for (int sy = fromY >> 4; sy <= hideDebrisBelow >> 4; sy++) {
+            for (var material : materials) {
+                if (chunk.sectionContains(sy, material)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
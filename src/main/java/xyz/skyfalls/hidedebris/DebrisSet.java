@@ -0,0 +1,75 @@
+package xyz.skyfalls.hidedebris;
+
+import java.util.Arrays;
+
+// chunk relative debris positions packed into ints, with a flag bit
+// layout: y (12 bits, signed) | x (6 bits, signed) | z (6 bits, signed) | flag (1 bit)
+// so sorting the raw ints orders entries by y, then x, then z
+public class DebrisSet {
+    private static final int FLAG = 1;
+    private static final int Z_SHIFT = 1;
+    private static final int X_SHIFT = 7;
+    private static final int Y_SHIFT = 13;
+    private static final int COORD_MASK = 0x3f;
+    private static final int COORD_OFFSET = 32;
+    private static final int Y_OFFSET = 2048;
+    private int[] entries;
+    private int size;
+
+    public DebrisSet() {
+        this(16);
+    }
+
+    public DebrisSet(int capacity) {
+        this.entries = new int[Math.max(capacity, 1)];
+    }
+
+    // x and z in [-32, 31], y in [-2048, 2047]
+    public void add(int x, int y, int z, boolean flag) {
+        if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size * 2);
+        }
+        entries[size++] = (y + Y_OFFSET) << Y_SHIFT
+                | (x + COORD_OFFSET) << X_SHIFT
+                | (z + COORD_OFFSET) << Z_SHIFT
+                | (flag ? FLAG : 0);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int x(int i) {
+        return (entries[i] >>> X_SHIFT & COORD_MASK) - COORD_OFFSET;
+    }
+
+    public int y(int i) {
+        return (entries[i] >>> Y_SHIFT) - Y_OFFSET;
+    }
+
+    public int z(int i) {
+        return (entries[i] >>> Z_SHIFT & COORD_MASK) - COORD_OFFSET;
+    }
+
+    // pushable after scanDebris, pushed after pushDown
+    public boolean flag(int i) {
+        return (entries[i] & FLAG) != 0;
+    }
+
+    public int countFlagged() {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            count += entries[i] & FLAG;
+        }
+        return count;
+    }
+
+    // orders entries by y ascending
+    public void sort() {
+        Arrays.sort(entries, 0, size);
+    }
+}
@@ -2,8 +2,11 @@ package xyz.skyfalls.hidedebris;
 
 import org.bukkit.Bukkit;
 import org.bukkit.World;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
 import org.bukkit.event.Listener;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -17,6 +20,12 @@ public final class HideDebris extends JavaPlugin implements Listener {
     // config is intentionally left null to prevent uninitialized usage
     private Config config;
     private WorldMigrator worldMigratorThread;
+    private LazyMigrator lazyMigrator;
+    private MainThreadExecutor mainThreadExecutor;
+    private Rollback rollback;
+    private Path cachePath;
+    private final Metrics metrics = new Metrics();
+    private BukkitTask metricsTask;
 
     @Override
     public void onEnable() {
@@ -27,25 +36,69 @@ public final class HideDebris extends JavaPlugin implements Listener {
         }
 
         config.worlds.forEach(e -> {
-            e.getPopulators().add(new PostprocessingPopulator(this.config.hideDebrisBelow));
+            e.getPopulators().add(new PostprocessingPopulator(this.config.hideDebrisBelow, this.config.blockClasses, metrics));
         });
 
+        cachePath = getDataFolder().toPath().toAbsolutePath();
+        try {
+            Files.createDirectories(cachePath);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        // also used by rollbacks, so it runs even without migrate-on-load
+        if (config.adaptiveScheduler) {
+            mainThreadExecutor = new MainThreadExecutor.Adaptive(log, config.tickBudgetMinMs,
+                    config.tickBudgetMaxMs, config.targetMspt, config.maxMspt);
+        } else {
+            mainThreadExecutor = new MainThreadExecutor.Fixed(config.batchSize, config.ticksPerBatch);
+        }
+        mainThreadExecutor.start(this, metrics);
+        if (config.metricsIntervalSeconds > 0) {
+            Path metricsFile = cachePath.resolve("metrics.prom");
+            long period = config.metricsIntervalSeconds * 20L;
+            metricsTask = Bukkit.getScheduler().runTaskTimerAsynchronously(this, () -> {
+                try {
+                    metrics.writePrometheus(metricsFile);
+                } catch (IOException e) {
+                    log.warning("Failed to write " + metricsFile + ": " + e);
+                }
+            }, period, period);
+        }
+
         if (config.migrateOnLoad) {
-            Path cachePath = getDataFolder().toPath().toAbsolutePath();
+            worldMigratorThread = new WorldMigrator(this, this.config.hideDebrisBelow, this.config.blockClasses,
+                    this.config.checkerThreadCount, this.config.worlds, cachePath, mainThreadExecutor,
+                    this.config.lookAheadRegions, this.config.maxLoadedChunks, this.config.maxCachedSnapshots,
+                    ChunkSource.detect(mainThreadExecutor), this.config.compressChangeLog, metrics);
+            worldMigratorThread.start();
+        }
+        if (config.lazyMigration) {
+            lazyMigrator = new LazyMigrator(this, this.config.hideDebrisBelow, this.config.blockClasses,
+                    this.config.checkerThreadCount, cachePath, mainThreadExecutor, this.config.compressChangeLog,
+                    metrics);
             try {
-                Files.createDirectories(cachePath);
+                lazyMigrator.start(this.config.worlds);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-            worldMigratorThread = new WorldMigrator(this, this.config.hideDebrisBelow,
-                    this.config.checkerThreadCount, this.config.worlds, cachePath,
-                    this.config.batchSize, this.config.ticksPerBatch);
-            worldMigratorThread.start();
         }
     }
 
     @Override
     public void onDisable() {
+        // drop queued apply work first so nothing writes to change logs the migrator is about to close
+        if (mainThreadExecutor != null) {
+            mainThreadExecutor.stop();
+        }
+        if (metricsTask != null) {
+            metricsTask.cancel();
+        }
+        if (rollback != null) {
+            rollback.interrupt();
+        }
+        if (lazyMigrator != null) {
+            lazyMigrator.close();
+        }
         if (worldMigratorThread != null) {
             worldMigratorThread.interrupt();
             log.info("Waiting for WorldMigrator thread to quit");
@@ -73,8 +126,48 @@ public final class HideDebris extends JavaPlugin implements Listener {
         this.config = null;
     }
 
-    private record Config(List<World> worlds, int hideDebrisBelow, int checkerThreadCount, boolean migrateOnLoad,
-                          int batchSize, int ticksPerBatch) {
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (args.length == 1 && args[0].equals("stats")) {
+            metrics.summary().forEach(sender::sendMessage);
+            return true;
+        }
+        if (args.length != 2 || !args[0].equals("rollback")) {
+            return false;
+        }
+        var world = getServer().getWorld(args[1]);
+        if (world == null) {
+            sender.sendMessage("World " + args[1] + " does not exist");
+            return true;
+        }
+        if (worldMigratorThread != null && worldMigratorThread.isAlive()) {
+            sender.sendMessage("Migration is still running, set migrate-on-load to false and restart first");
+            return true;
+        }
+        if (lazyMigrator != null) {
+            sender.sendMessage("Lazy migration is enabled, set lazy-migration to false and restart first");
+            return true;
+        }
+        if (rollback != null && rollback.isAlive()) {
+            sender.sendMessage("A rollback is already running");
+            return true;
+        }
+        var changeLog = cachePath.resolve(world.getName() + ".changes");
+        if (!Files.exists(changeLog)) {
+            sender.sendMessage("There is no change log for world " + world.getName());
+            return true;
+        }
+        rollback = new Rollback(this, world, changeLog, mainThreadExecutor, sender);
+        rollback.start();
+        sender.sendMessage("Rolling back world " + world.getName());
+        return true;
+    }
+
+    private record Config(List<World> worlds, int hideDebrisBelow, BlockClasses blockClasses, int checkerThreadCount,
+                          boolean migrateOnLoad, boolean lazyMigration, int batchSize, int ticksPerBatch,
+                          boolean adaptiveScheduler, double tickBudgetMinMs, double tickBudgetMaxMs, double targetMspt,
+                          double maxMspt, int lookAheadRegions, int maxLoadedChunks, int maxCachedSnapshots,
+                          boolean compressChangeLog, int metricsIntervalSeconds) {
     }
 
     private synchronized void parseConfig() {
@@ -93,16 +186,51 @@ public final class HideDebris extends JavaPlugin implements Listener {
         if (hideDebrisBelow < worlds.get(0).getMinHeight()) {
             throw new RuntimeException("\"hide-debris-below\" is below minimum height of the world");
         }
+        var blockClasses = BlockClasses.fromConfig(getConfig());
         var checkerThreadCount = getConfig().getInt("checker-threads-count");
         if (checkerThreadCount < 1) {
             throw new RuntimeException("\"checker-threads-count\" should be at least 1");
         }
         var migrateOnLoad = getConfig().getBoolean("migrate-on-load");
+        var lazyMigration = getConfig().getBoolean("lazy-migration", false);
+        if (migrateOnLoad && lazyMigration) {
+            throw new RuntimeException("\"migrate-on-load\" and \"lazy-migration\" can't both be enabled");
+        }
         var batchSize = getConfig().getInt("batch-size");
         if (batchSize < 1) {
             throw new RuntimeException("\"batch-size\" should be at least 1");
         }
         var ticksPerBatch = getConfig().getInt("ticks-between-batches");
-        config = new Config(worlds, hideDebrisBelow, checkerThreadCount, migrateOnLoad, batchSize, ticksPerBatch);
+        var scheduler = getConfig().getString("apply-scheduler", "adaptive");
+        if (!scheduler.equals("adaptive") && !scheduler.equals("fixed")) {
+            throw new RuntimeException("\"apply-scheduler\" should be either adaptive or fixed");
+        }
+        var tickBudgetMinMs = getConfig().getDouble("tick-budget-min-ms", 1);
+        var tickBudgetMaxMs = getConfig().getDouble("tick-budget-max-ms", 10);
+        if (tickBudgetMinMs <= 0 || tickBudgetMaxMs < tickBudgetMinMs) {
+            throw new RuntimeException("\"tick-budget-min-ms\" should be positive and not above \"tick-budget-max-ms\"");
+        }
+        var targetMspt = getConfig().getDouble("target-mspt", 40);
+        var maxMspt = getConfig().getDouble("max-mspt", 48);
+        if (maxMspt < targetMspt) {
+            throw new RuntimeException("\"max-mspt\" should not be below \"target-mspt\"");
+        }
+        var lookAheadRegions = getConfig().getInt("look-ahead-regions", 2);
+        if (lookAheadRegions < 1) {
+            throw new RuntimeException("\"look-ahead-regions\" should be at least 1");
+        }
+        var maxLoadedChunks = getConfig().getInt("max-loaded-chunks", 64);
+        if (maxLoadedChunks < 1) {
+            throw new RuntimeException("\"max-loaded-chunks\" should be at least 1");
+        }
+        var maxCachedSnapshots = getConfig().getInt("max-cached-snapshots", 128);
+        if (maxCachedSnapshots < 0) {
+            throw new RuntimeException("\"max-cached-snapshots\" should not be negative");
+        }
+        var compressChangeLog = getConfig().getBoolean("compress-change-log", true);
+        var metricsIntervalSeconds = getConfig().getInt("metrics-interval-seconds", 30);
+        config = new Config(worlds, hideDebrisBelow, blockClasses, checkerThreadCount, migrateOnLoad, lazyMigration,
+                batchSize, ticksPerBatch, scheduler.equals("adaptive"), tickBudgetMinMs, tickBudgetMaxMs, targetMspt,
+                maxMspt, lookAheadRegions, maxLoadedChunks, maxCachedSnapshots, compressChangeLog, metricsIntervalSeconds);
     }
 }
@@ -5,9 +5,15 @@ import org.bukkit.ChunkSnapshot;
 import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.generator.LimitedRegion;
+import xyz.skyfalls.hidedebris.anvil.AnvilChunk;
+import xyz.skyfalls.hidedebris.anvil.AnvilRegion;
 import xyz.skyfalls.hidedebris.utils.Vec3i;
 
 import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.Map;
 
 public interface IRegionAccess {
     Material getBlockType(int x, int y, int z);
@@ -22,6 +28,12 @@ public interface IRegionAccess {
         setBlockType(pos.x(), pos.y(), pos.z(), material);
     }
 
+    // false only if the 16x16x16 section sectionY of the center chunk is known to not contain the material,
+    // lets scans skip whole sections without reading their blocks
+    default boolean sectionMayContain(int sectionY, Material material) {
+        return true;
+    }
+
     interface Inbounds extends IRegionAccess {
     }
 
@@ -37,11 +49,19 @@ public interface IRegionAccess {
     }
 
     // WorldAdaptor implements outbound block access in generated chunks surrounding the center chunk
+    // chunk handles of the 3x3 neighbourhood are resolved once, use one instance per center chunk on one thread
+    // writes skip physics, the blocks around an edit are left exactly as they were scanned
     class WorldAdaptor implements Inbounds, Outbounds {
-        private static final Boolean[][] isChunkGeneratedCache = new Boolean[3][3];
         private final World world;
         private final int centerChunkX;
         private final int centerChunkZ;
+        private final Chunk[] chunks = new Chunk[9];
+        private final boolean[] resolved = new boolean[9];
+        // per neighbourhood chunk, 256 bits covering every section y the world can have
+        private final BitSet sectionsWritten = new BitSet();
+        private int worldLookups;
+        private int blockAccesses;
+        private int blocksWritten;
 
         public WorldAdaptor(World world, int centerChunkX, int centerChunkZ) {
             this.world = world;
@@ -49,33 +69,55 @@ public interface IRegionAccess {
             this.centerChunkZ = centerChunkZ;
         }
 
+        // null if the chunk hasn't been generated
+        @Nullable
         private Chunk getChunk(int x, int z) {
-            return world.getChunkAt(centerChunkX + (x >> 4), centerChunkZ + (z >> 4), false);
-        }
-
-        private boolean isChunkGenerated(int x, int z) {
-            x = (x + 16) / 16;
-            z = (z + 16) / 16;
-            if (isChunkGeneratedCache[x][z] != null) {
-                return isChunkGeneratedCache[x][z];
+            int i = ((x >> 4) + 1) * 3 + (z >> 4) + 1;
+            blockAccesses++;
+            if (!resolved[i]) {
+                resolved[i] = true;
+                int chunkX = centerChunkX + (x >> 4);
+                int chunkZ = centerChunkZ + (z >> 4);
+                worldLookups++;
+                // isChunkGenerated is also true for proto chunks on disk, which getChunkAt would finish generating
+                var chunk = world.getChunkAt(chunkX, chunkZ, false);
+                chunks[i] = chunk.isGenerated() ? chunk : null;
             }
-            return isChunkGeneratedCache[x][z] = getChunk(x, z).isGenerated();
+            return chunks[i];
         }
 
         @Override
         public @Nullable Material getBlockType(int x, int y, int z) {
-            if (!isChunkGenerated(x, z)) {
+            var chunk = getChunk(x, z);
+            if (chunk == null) {
                 return null;
             }
-            return this.world.getType(centerChunkX * 16 + x, y, centerChunkZ * 16 + z);
+            return chunk.getBlock(x & 15, y, z & 15).getType();
         }
 
         @Override
         public void setBlockType(int x, int y, int z, Material material) {
-            if (isChunkGenerated(x, z)) {
-                this.world.setType(centerChunkX * 16 + x, y, centerChunkZ * 16 + z, material);
+            var chunk = getChunk(x, z);
+            if (chunk != null) {
+                chunk.getBlock(x & 15, y, z & 15).setType(material, false);
+                blocksWritten++;
+                sectionsWritten.set((((x >> 4) + 1) * 3 + (z >> 4) + 1) * 256 + (y >> 4 & 255));
             }
         }
+
+        // each block access used to look the chunk up through the world
+        public int getWorldLookupsSaved() {
+            return blockAccesses - worldLookups;
+        }
+
+        public int getBlocksWritten() {
+            return blocksWritten;
+        }
+
+        // the server sends at most one block update packet per changed section and tick
+        public int getSectionsWritten() {
+            return sectionsWritten.cardinality();
+        }
     }
 
     static WorldAdaptor from(World world, int centerChunkX, int centerChunkZ) {
@@ -84,9 +126,12 @@ public interface IRegionAccess {
 
     class ChunkSnapshotAdaptor implements Inbounds {
         private final ChunkSnapshot chunk;
+        private final int minSection;
+        private final Map<Material, Boolean> containsResults = new EnumMap<>(Material.class);
 
-        public ChunkSnapshotAdaptor(ChunkSnapshot chunk) {
+        public ChunkSnapshotAdaptor(ChunkSnapshot chunk, int minHeight) {
             this.chunk = chunk;
+            this.minSection = minHeight >> 4;
         }
 
         @Override
@@ -94,14 +139,63 @@ public interface IRegionAccess {
             return chunk.getBlockType(x, y, z);
         }
 
+        @Override
+        public boolean sectionMayContain(int sectionY, Material material) {
+            if (chunk.isSectionEmpty(sectionY - minSection)) {
+                return false;
+            }
+            // snapshots only expose a palette check for the whole chunk, and it matches the exact block state,
+            // a block with properties may be in the palette with any other state so it can't be ruled out
+            return containsResults.computeIfAbsent(material, m -> {
+                var data = m.createBlockData();
+                return data.getAsString().indexOf('[') >= 0 || chunk.contains(data);
+            });
+        }
+
         @Override
         public void setBlockType(int x, int y, int z, Material material) {
             throw new UnsupportedOperationException("snapshot is read only");
         }
     }
 
-    static ChunkSnapshotAdaptor from(ChunkSnapshot snapshot) {
-        return new ChunkSnapshotAdaptor(snapshot);
+    static ChunkSnapshotAdaptor from(ChunkSnapshot snapshot, int minHeight) {
+        return new ChunkSnapshotAdaptor(snapshot, minHeight);
+    }
+
+    // SnapshotEditAdaptor reads the 3x3 snapshots around a chunk and records writes as edits instead of applying them
+    // neighbourhood is indexed by (dx + 1) * 3 + dz + 1, null for chunks that haven't been generated
+    class SnapshotEditAdaptor implements Inbounds, Outbounds {
+        private final ChunkSnapshot[] neighbourhood;
+        private final ChunkEdits edits;
+
+        public SnapshotEditAdaptor(ChunkSnapshot[] neighbourhood, ChunkEdits edits) {
+            this.neighbourhood = neighbourhood;
+            this.edits = edits;
+        }
+
+        @Override
+        public @Nullable Material getBlockType(int x, int y, int z) {
+            if (!edits.isEmpty()) {
+                int i = edits.indexOf(x, y, z);
+                if (i >= 0) {
+                    return edits.updated(i);
+                }
+            }
+            var chunk = neighbourhood[((x >> 4) + 1) * 3 + (z >> 4) + 1];
+            return chunk == null ? null : chunk.getBlockType(x & 15, y, z & 15);
+        }
+
+        @Override
+        public void setBlockType(int x, int y, int z, Material material) {
+            var current = getBlockType(x, y, z);
+            if (current != null) {
+                edits.record(x, y, z, current, material);
+            }
+        }
+    }
+
+    static SnapshotEditAdaptor from(ChunkSnapshot[] neighbourhood, ChunkEdits edits) {
+        return new SnapshotEditAdaptor(neighbourhood, edits);
     }
 
     class LimitedRegionAdaptor implements Inbounds, Outbounds {
@@ -154,4 +248,144 @@ public interface IRegionAccess {
     static ChunkAdaptor from(Chunk chunk) {
         return new ChunkAdaptor(chunk);
     }
+
+    // ArrayAdaptor keeps a y band of the center chunk and its 8 neighbours in a plain array of material ordinals,
+    // blocks outside the band read as null and writes to them are dropped
+    // the original of every written block is kept, so changes can be collected or reverted
+    class ArrayAdaptor implements Inbounds, Outbounds {
+        private static final Material[] MATERIALS = Material.values();
+        private static final int WIDTH = 48;
+        private final int minY;
+        private final int maxY;
+        private final short[] blocks;
+        private final BitSet written;
+        private int[] changed = new int[16];
+        private short[] original = new short[16];
+        private int changes;
+
+        public ArrayAdaptor(int minY, int maxY) {
+            this.minY = minY;
+            this.maxY = maxY;
+            this.blocks = new short[(maxY - minY + 1) * WIDTH * WIDTH];
+            this.written = new BitSet(blocks.length);
+            Arrays.fill(blocks, (short) Material.AIR.ordinal());
+        }
+
+        public int getMinY() {
+            return minY;
+        }
+
+        public int getMaxY() {
+            return maxY;
+        }
+
+        private int index(int x, int y, int z) {
+            if (x < -16 || x >= 32 || z < -16 || z >= 32 || y < minY || y > maxY) {
+                return -1;
+            }
+            return ((y - minY) * WIDTH + x + 16) * WIDTH + z + 16;
+        }
+
+        @Override
+        public @Nullable Material getBlockType(int x, int y, int z) {
+            int i = index(x, y, z);
+            return i < 0 ? null : MATERIALS[blocks[i]];
+        }
+
+        @Override
+        public void setBlockType(int x, int y, int z, Material material) {
+            int i = index(x, y, z);
+            if (i < 0 || material == null || blocks[i] == material.ordinal()) {
+                return;
+            }
+            if (!written.get(i)) {
+                written.set(i);
+                if (changes == changed.length) {
+                    changed = Arrays.copyOf(changed, changes * 2);
+                    original = Arrays.copyOf(original, changes * 2);
+                }
+                changed[changes] = i;
+                original[changes] = blocks[i];
+                changes++;
+            }
+            blocks[i] = (short) material.ordinal();
+        }
+
+        // blocks that differ from their original since creation or the last commit
+        public ChunkEdits getChanges() {
+            var edits = new ChunkEdits();
+            for (int c = 0; c < changes; c++) {
+                int i = changed[c];
+                if (blocks[i] != original[c]) {
+                    int z = i % WIDTH - 16;
+                    int x = i / WIDTH % WIDTH - 16;
+                    int y = i / WIDTH / WIDTH + minY;
+                    edits.record(x, y, z, MATERIALS[original[c]], MATERIALS[blocks[i]]);
+                }
+            }
+            return edits;
+        }
+
+        // the current blocks become the originals
+        public void commit() {
+            for (int c = 0; c < changes; c++) {
+                written.clear(changed[c]);
+            }
+            changes = 0;
+        }
+
+        // reverts every write since creation or the last commit
+        public void reset() {
+            for (int c = 0; c < changes; c++) {
+                blocks[changed[c]] = original[c];
+            }
+            commit();
+        }
+    }
+
+    // AnvilAdaptor reads and writes decoded region file data, chunks in other region files count as not generated
+    // writes go straight to the decoded chunks and are also recorded in edits for the change log
+    class AnvilAdaptor implements Inbounds, Outbounds {
+        private final AnvilRegion region;
+        private final int localX;
+        private final int localZ;
+        private final ChunkEdits edits;
+
+        public AnvilAdaptor(AnvilRegion region, int localX, int localZ, ChunkEdits edits) {
+            this.region = region;
+            this.localX = localX;
+            this.localZ = localZ;
+            this.edits = edits;
+        }
+
+        @Nullable
+        private AnvilChunk getChunk(int x, int z) {
+            return region.getChunk(localX + (x >> 4), localZ + (z >> 4));
+        }
+
+        @Override
+        public @Nullable Material getBlockType(int x, int y, int z) {
+            var chunk = getChunk(x, z);
+            return chunk == null ? null : chunk.getBlockType(x & 15, y, z & 15);
+        }
+
+        @Override
+        public void setBlockType(int x, int y, int z, Material material) {
+            var chunk = getChunk(x, z);
+            if (chunk != null) {
+                edits.record(x, y, z, chunk.getBlockType(x & 15, y, z & 15), material);
+                chunk.setBlockType(x & 15, y, z & 15, material);
+            }
+        }
+
+        @Override
+        public boolean sectionMayContain(int sectionY, Material material) {
+            var chunk = getChunk(0, 0);
+            return chunk != null && chunk.sectionContains(sectionY, material);
+        }
+    }
+
+    static AnvilAdaptor from(AnvilRegion region, int localX, int localZ, ChunkEdits edits) {
+        return new AnvilAdaptor(region, localX, localZ, edits);
+    }
 }
@@ -0,0 +1,272 @@
+package xyz.skyfalls.hidedebris;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkLoadEvent;
+import xyz.skyfalls.hidedebris.utils.ChangeLogWriter;
+import xyz.skyfalls.hidedebris.utils.RegionUtils;
+import xyz.skyfalls.hidedebris.utils.Vec2i;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// migrates existing chunks the first time they load instead of sweeping every region of the world
+// the chunk is scanned from a snapshot on the pool, the neighbours hideExposed reaches into are snapshotted
+// once the scan found debris in the edge columns, and the edits are applied through the main thread executor
+// chunks that can't be finished right now, because a neighbour isn't loaded, the chunk unloaded or changed
+// before the apply, or too many are in flight, stay unmarked in the progress file and are retried on their next load
+public class LazyMigrator implements Listener {
+    private static final int MAX_PENDING_CHUNKS = 256;
+    private final Logger log;
+    private final HideDebris plugin;
+    private final int hideDebrisBelow;
+    private final BlockClasses classes;
+    private final ChunkProcessor processor;
+    private final ExecutorService pool;
+    private final Path cache;
+    private final MainThreadExecutor mainThread;
+    private final boolean compressChangeLog;
+    private final Metrics metrics;
+    private final Map<World, LazyWorld> worlds = new HashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    public LazyMigrator(HideDebris plugin, int hideDebrisBelow, BlockClasses classes, int checkerThreadCount,
+                        Path cache, MainThreadExecutor mainThread, boolean compressChangeLog, Metrics metrics) {
+        this.plugin = plugin;
+        this.log = plugin.getLogger();
+        this.hideDebrisBelow = hideDebrisBelow;
+        this.classes = classes;
+        this.processor = new ChunkProcessor(classes);
+        this.pool = Executors.newWorkStealingPool(checkerThreadCount);
+        this.cache = cache;
+        this.mainThread = mainThread;
+        this.compressChangeLog = compressChangeLog;
+        this.metrics = metrics;
+        metrics.gauge("lazy_pending_chunks", "Chunks between their load and the apply of their edits", pending::get);
+    }
+
+    // the sweep and this share the progress and change log files, so only one of them may run
+    public void start(List<World> worlds) throws IOException {
+        for (World e : worlds) {
+            var progress = RegionProgressFile.open(cache, e.getName());
+            progress.useParams(MigrationParams.of(hideDebrisBelow, classes));
+            var changes = new ChangeLogWriter(cache.resolve(e.getName() + ".changes"), compressChangeLog);
+            this.worlds.put(e, new LazyWorld(e, mainThread.newLane(), progress, changes));
+        }
+        // reading the region files of a whole world takes a while, meanwhile chunks still waiting for it are
+        // considered done and only picked up on a later load
+        var indexer = new DebrisIndexer(pool, hideDebrisBelow, classes);
+        for (LazyWorld e : this.worlds.values()) {
+            CompletableFuture.runAsync(() -> e.reconcile(indexer), pool).exceptionally(ex -> {
+                log.log(Level.WARNING, "Failed to check world %s for chunks migrated with other settings"
+                        .formatted(e.world.getName()), ex);
+                return null;
+            });
+        }
+        plugin.getServer().getPluginManager().registerEvents(this, plugin);
+        log.info("Lazy migration enabled, chunks are migrated the first time they load");
+    }
+
+    // the main thread executor has to be stopped first, so no queued apply writes to the closed files
+    public void close() {
+        HandlerList.unregisterAll(this);
+        pool.shutdownNow();
+        try {
+            pool.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ignored) {
+        }
+        for (LazyWorld e : worlds.values()) {
+            try {
+                e.progress.close();
+                e.changes.close();
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Failed to close the files of world " + e.world.getName(), ex);
+            }
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        var world = worlds.get(event.getWorld());
+        if (world == null) {
+            return;
+        }
+        var chunk = event.getChunk();
+        var pos = new Vec2i(chunk.getX(), chunk.getZ());
+        if (world.progress.isChunkDone(pos.x(), pos.z())) {
+            return;
+        }
+        // generated while the populator was in place
+        if (event.isNewChunk()) {
+            world.markDone(pos);
+            return;
+        }
+        if (pending.get() >= MAX_PENDING_CHUNKS || !world.pending.add(pos)) {
+            return;
+        }
+        pending.incrementAndGet();
+        // avoid accessing Chunk data in a async task
+        var snapshot = chunk.getChunkSnapshot(false, false, false);
+        CompletableFuture.runAsync(() -> world.scan(pos, snapshot), pool).exceptionally(ex -> {
+            world.fail(pos, ex);
+            return null;
+        });
+    }
+
+    private class LazyWorld {
+        private final World world;
+        // apply jobs of this world, sharing the main thread budget fairly with the other worlds
+        private final Executor lane;
+        private final RegionProgressFile progress;
+        private final ChangeLogWriter changes;
+        private final Set<Vec2i> pending = ConcurrentHashMap.newKeySet();
+
+        private LazyWorld(World world, Executor lane, RegionProgressFile progress, ChangeLogWriter changes) {
+            this.world = world;
+            this.lane = lane;
+            this.progress = progress;
+            this.changes = changes;
+        }
+
+        private void reconcile(DebrisIndexer indexer) {
+            try {
+                var regionFolder = RegionUtils.getRegionFolder(world.getWorldFolder().toPath());
+                int rescans = progress.reconcile(regionFolder, RegionUtils.getRegions(regionFolder), indexer);
+                if (rescans > 0) {
+                    log.info("World %s: %d chunks were migrated with other settings, they are migrated again on their next load"
+                            .formatted(world.getName(), rescans));
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        private void scan(Vec2i pos, ChunkSnapshot snapshot) {
+            long start = System.nanoTime();
+            var debris = processor.scanDebris(IRegionAccess.from(snapshot, world.getMinHeight()),
+                    world.getMinHeight(), hideDebrisBelow);
+            metrics.scanTime.record(System.nanoTime() - start);
+            metrics.chunksScanned.increment();
+            if (debris.isEmpty()) {
+                markDone(pos);
+                finish(pos);
+                return;
+            }
+            ChunkSnapshot[] neighbourhood = new ChunkSnapshot[9];
+            neighbourhood[4] = snapshot;
+            // hideExposed only reaches across the chunk border from debris in the edge columns
+            boolean[] needed = new boolean[9];
+            for (int i = 0; i < debris.size(); i++) {
+                int dx = debris.x(i) == 0 ? -1 : debris.x(i) == 15 ? 1 : 0;
+                int dz = debris.z(i) == 0 ? -1 : debris.z(i) == 15 ? 1 : 0;
+                if (dx != 0) {
+                    needed[(dx + 1) * 3 + 1] = true;
+                }
+                if (dz != 0) {
+                    needed[3 + dz + 1] = true;
+                }
+            }
+            lane.execute(() -> {
+                // never load a neighbour just for this, it is retried once they are loaded together
+                for (int i = 0; i < 9; i++) {
+                    if (needed[i] && !world.isChunkLoaded(pos.x() + i / 3 - 1, pos.z() + i % 3 - 1)) {
+                        finish(pos);
+                        return;
+                    }
+                }
+                for (int i = 0; i < 9; i++) {
+                    if (needed[i]) {
+                        neighbourhood[i] = world.getChunkAt(pos.x() + i / 3 - 1, pos.z() + i % 3 - 1)
+                                .getChunkSnapshot(false, false, false);
+                    }
+                }
+                CompletableFuture.runAsync(() -> compute(pos, debris, neighbourhood, needed), pool)
+                        .exceptionally(ex -> {
+                            fail(pos, ex);
+                            return null;
+                        });
+            });
+        }
+
+        private void compute(Vec2i pos, DebrisSet debris, ChunkSnapshot[] neighbourhood, boolean[] needed) {
+            var edits = new ChunkEdits();
+            var access = IRegionAccess.from(neighbourhood, edits);
+            var allDebris = processor.pushDown(access, debris);
+            var hidden = processor.hideExposed(access, allDebris);
+            if (edits.isEmpty()) {
+                markDone(pos);
+                finish(pos);
+                return;
+            }
+            lane.execute(() -> {
+                try {
+                    apply(pos, debris, hidden, edits, needed);
+                } finally {
+                    finish(pos);
+                }
+            });
+        }
+
+        // main thread, the chunk and the neighbours the edits touch must still be loaded so nothing is loaded here
+        private void apply(Vec2i pos, DebrisSet debris, DebrisSet hidden, ChunkEdits edits, boolean[] needed) {
+            for (int i = 0; i < 9; i++) {
+                if ((i == 4 || needed[i]) && !world.isChunkLoaded(pos.x() + i / 3 - 1, pos.z() + i % 3 - 1)) {
+                    return;
+                }
+            }
+            long start = System.nanoTime();
+            var access = IRegionAccess.from(world, pos.x(), pos.z());
+            if (edits.apply(access)) {
+                changes.append(pos.x(), pos.z(), edits);
+                markDone(pos);
+                metrics.chunksApplied.increment();
+                metrics.debrisPushed.add(debris.countFlagged());
+                metrics.debrisHidden.add(hidden.size());
+                metrics.blocksWritten.add(access.getBlocksWritten());
+                metrics.sectionsWritten.add(access.getSectionsWritten());
+                metrics.writesDropped.add(edits.size() - edits.countWrites());
+            } else {
+                metrics.conflicts.increment();
+            }
+            metrics.applyTime.record(System.nanoTime() - start);
+        }
+
+        private void markDone(Vec2i pos) {
+            try {
+                progress.markChunkDone(pos.x(), pos.z());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        private void finish(Vec2i pos) {
+            if (pending.remove(pos)) {
+                LazyMigrator.this.pending.decrementAndGet();
+            }
+        }
+
+        private void fail(Vec2i pos, Throwable ex) {
+            finish(pos);
+            log.log(Level.WARNING, "Failed to migrate chunk %d, %d of world %s"
+                    .formatted(pos.x(), pos.z(), world.getName()), ex);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package xyz.skyfalls.hidedebris;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// runs queued migrator work on the server thread, a limited amount per tick
+// work is queued in lanes, one per world, which take turns so no world starves the others
+public abstract class MainThreadExecutor implements Executor {
+    private final List<Queue<Runnable>> lanes = new CopyOnWriteArrayList<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Executor defaultLane = newLane();
+    private int nextLane;
+    private int ranThisTick;
+    private Logger log;
+    private Metrics metrics;
+    private BukkitTask task;
+
+    @Override
+    public void execute(Runnable command) {
+        defaultLane.execute(command);
+    }
+
+    public Executor newLane() {
+        Queue<Runnable> lane = new ConcurrentLinkedQueue<>();
+        lanes.add(lane);
+        return command -> {
+            queued.incrementAndGet();
+            lane.add(command);
+        };
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public void start(Plugin plugin, Metrics metrics) {
+        this.log = plugin.getLogger();
+        this.metrics = metrics;
+        metrics.gauge("main_thread_queue", "Jobs waiting for the main thread", this::getQueued);
+        task = Bukkit.getScheduler().runTaskTimer(plugin, this::timedTick, 1, period());
+    }
+
+    private void timedTick() {
+        long start = System.nanoTime();
+        ranThisTick = 0;
+        tick();
+        if (ranThisTick > 0) {
+            metrics.tickTime.record(System.nanoTime() - start);
+        }
+    }
+
+    // queued work is dropped, whoever is waiting on it has to be interrupted
+    public void stop() {
+        if (task != null) {
+            task.cancel();
+        }
+        lanes.forEach(Queue::clear);
+        queued.set(0);
+    }
+
+    protected abstract long period();
+
+    protected abstract void tick();
+
+    // round robin over the lanes, starting after the one that ran last
+    protected boolean runNext() {
+        int size = lanes.size();
+        for (int i = 0; i < size; i++) {
+            int lane = (nextLane + i) % size;
+            var job = lanes.get(lane).poll();
+            if (job != null) {
+                nextLane = (lane + 1) % size;
+                queued.decrementAndGet();
+                ranThisTick++;
+                // one broken job must not take down the rest of the tick or the timer task
+                try {
+                    job.run();
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Main thread job failed", e);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the old fixed mode: batchSize jobs every ticksPerBatch ticks, whatever the server load is
+    public static class Fixed extends MainThreadExecutor {
+        private final int batchSize;
+        private final int ticksPerBatch;
+
+        public Fixed(int batchSize, int ticksPerBatch) {
+            this.batchSize = batchSize;
+            this.ticksPerBatch = ticksPerBatch;
+        }
+
+        @Override
+        protected long period() {
+            return Math.max(1, ticksPerBatch);
+        }
+
+        @Override
+        protected void tick() {
+            for (int i = 0; i < batchSize && runNext(); i++) {
+            }
+        }
+    }
+
+    // runs jobs for a time budget each tick, halving the budget while the server is above targetMspt,
+    // growing it again while below, and pausing entirely above maxMspt
+    public static class Adaptive extends MainThreadExecutor {
+        private static final long BUDGET_STEP_NANOS = 500_000;
+        private static final double TICK_MILLIS = 50;
+        private final Logger log;
+        private final long minBudgetNanos;
+        private final long maxBudgetNanos;
+        private final double targetMspt;
+        private final double maxMspt;
+        // paper exposes the real tick duration, spigot only lets us observe ticks running late
+        private final MethodHandle averageTickTime;
+        private long budgetNanos;
+        private long lastTick;
+        private double intervalMillis = TICK_MILLIS;
+        private boolean paused;
+
+        public Adaptive(Logger log, double minBudgetMillis, double maxBudgetMillis, double targetMspt, double maxMspt) {
+            this.log = log;
+            this.minBudgetNanos = (long) (minBudgetMillis * 1_000_000);
+            this.maxBudgetNanos = (long) (maxBudgetMillis * 1_000_000);
+            this.targetMspt = targetMspt;
+            this.maxMspt = maxMspt;
+            this.budgetNanos = minBudgetNanos;
+            MethodHandle handle;
+            try {
+                handle = MethodHandles.publicLookup().findVirtual(Server.class,
+                        "getAverageTickTime", MethodType.methodType(double.class));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                handle = null;
+            }
+            this.averageTickTime = handle;
+        }
+
+        @Override
+        protected long period() {
+            return 1;
+        }
+
+        @Override
+        public void start(Plugin plugin, Metrics metrics) {
+            metrics.gauge("tick_budget_ms", "Current main thread budget per tick", this::getBudgetMillis);
+            metrics.gauge("mspt", "Server milliseconds per tick as seen by the scheduler", this::getMspt);
+            super.start(plugin, metrics);
+        }
+
+        public double getBudgetMillis() {
+            return paused ? 0 : budgetNanos / 1_000_000.0;
+        }
+
+        public double getMspt() {
+            if (averageTickTime != null) {
+                try {
+                    return (double) averageTickTime.invoke(Bukkit.getServer());
+                } catch (Throwable ignored) {
+                }
+            }
+            // a tick interval above 50ms is the tick duration, below that the server was idle for part of it
+            return intervalMillis > TICK_MILLIS + 1 ? intervalMillis : 0;
+        }
+
+        @Override
+        protected void tick() {
+            long start = System.nanoTime();
+            if (lastTick != 0) {
+                intervalMillis = intervalMillis * 0.8 + (start - lastTick) / 1_000_000.0 * 0.2;
+            }
+            lastTick = start;
+            double mspt = getMspt();
+            if (mspt > maxMspt) {
+                if (!paused) {
+                    log.info("Server at %.1f mspt, pausing migration".formatted(mspt));
+                    paused = true;
+                }
+                return;
+            }
+            if (paused) {
+                log.info("Server at %.1f mspt, resuming migration".formatted(mspt));
+                paused = false;
+            }
+            if (mspt > targetMspt) {
+                budgetNanos = Math.max(minBudgetNanos, budgetNanos / 2);
+            } else {
+                budgetNanos = Math.min(maxBudgetNanos, budgetNanos + BUDGET_STEP_NANOS);
+            }
+            // always make some progress, a single job may overrun the budget
+            long deadline = start + budgetNanos;
+            while (runNext() && System.nanoTime() < deadline) {
+            }
+        }
+    }
+}
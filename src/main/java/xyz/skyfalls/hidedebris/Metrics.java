@@ -0,0 +1,167 @@
+package xyz.skyfalls.hidedebris;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+// counters, histograms and gauges of the migrator and the populator
+// recording takes no locks and allocates nothing, text is only built when the metrics are read
+public class Metrics {
+    private static final String PREFIX = "hidedebris_";
+    private final Map<String, Metric<LongAdder>> counters = new LinkedHashMap<>();
+    private final Map<String, Metric<Histogram>> histograms = new LinkedHashMap<>();
+    private final Map<String, Metric<DoubleSupplier>> gauges = new LinkedHashMap<>();
+    private final long start = System.nanoTime();
+    private long lastSummary = start;
+    private long lastSummaryChunks;
+
+    public final LongAdder chunksScanned = counter("chunks_scanned", "Chunks loaded and scanned by the migrator");
+    public final LongAdder chunksSkipped = counter("chunks_skipped",
+            "Chunks the debris index marked clean, done without loading");
+    public final LongAdder chunksApplied = counter("chunks_applied", "Chunks whose edits were applied");
+    public final LongAdder conflicts = counter("conflicts", "Chunks that changed between scan and apply");
+    public final LongAdder regionsMigrated = counter("regions_migrated", "Regions finished by the migrator");
+    public final LongAdder debrisPushed = counter("debris_pushed", "Debris pushed down by the migrator");
+    public final LongAdder debrisHidden = counter("debris_hidden", "Debris with exposed faces patched by the migrator");
+    public final LongAdder chunkLoads = counter("chunk_loads", "Chunks the migrator loaded to take a snapshot");
+    public final LongAdder redundantChunkLoads = counter("redundant_chunk_loads",
+            "Snapshot loads of a chunk the migrator had loaded before");
+    public final LongAdder borderSnapshotHits = counter("border_snapshot_hits",
+            "Region border snapshots reused instead of loading the chunk again");
+    public final LongAdder blocksWritten = counter("blocks_written", "Blocks written on the main thread by the migrator");
+    public final LongAdder writesDropped = counter("writes_dropped",
+            "Recorded writes that left a block unchanged and were not written");
+    public final LongAdder sectionsWritten = counter("sections_written",
+            "Chunk sections written to by the migrator, each sends one block update packet at most");
+    public final LongAdder populatedChunks = counter("populated_chunks", "Chunks processed by the populator");
+    public final LongAdder populatorPushed = counter("populator_pushed", "Debris pushed down by the populator");
+    public final LongAdder populatorHidden = counter("populator_hidden", "Debris hidden by the populator");
+    public final Histogram scanTime = histogram("scan", "Snapshot and scan time per chunk on the pool");
+    public final Histogram applyTime = histogram("apply", "Main thread time per applied chunk");
+    public final Histogram tickTime = histogram("tick", "Main thread time per executor batch");
+    public final Histogram populateTime = histogram("populate", "Time per PostprocessingPopulator.populate call");
+
+    private record Metric<T>(String help, T value) {
+    }
+
+    private LongAdder counter(String name, String help) {
+        var counter = new LongAdder();
+        counters.put(name, new Metric<>(help, counter));
+        return counter;
+    }
+
+    private Histogram histogram(String name, String help) {
+        var histogram = new Histogram();
+        histograms.put(name, new Metric<>(help, histogram));
+        return histogram;
+    }
+
+    // sampled only when the metrics are read
+    public synchronized void gauge(String name, String help, DoubleSupplier supplier) {
+        gauges.put(name, new Metric<>(help, supplier));
+    }
+
+    public synchronized List<String> summary() {
+        List<String> lines = new ArrayList<>();
+        long now = System.nanoTime();
+        long chunks = chunksScanned.sum() + chunksSkipped.sum();
+        lines.add("chunks/s: %.1f now, %.1f since start".formatted(
+                (chunks - lastSummaryChunks) * 1e9 / Math.max(1, now - lastSummary),
+                chunks * 1e9 / Math.max(1, now - start)));
+        lastSummary = now;
+        lastSummaryChunks = chunks;
+        counters.forEach((name, e) -> lines.add("%s: %d".formatted(name, e.value().sum())));
+        histograms.forEach((name, e) -> {
+            var h = e.value();
+            long count = h.count();
+            lines.add("%s: count=%d, mean=%.3fms, p50<%.3fms, p99<%.3fms".formatted(name, count,
+                    count == 0 ? 0 : h.sum.sum() / 1e6 / count, h.quantile(0.5) / 1e6, h.quantile(0.99) / 1e6));
+        });
+        gauges.forEach((name, e) -> lines.add("%s: %.2f".formatted(name, e.value().getAsDouble())));
+        return lines;
+    }
+
+    public synchronized String toPrometheus() {
+        var out = new StringBuilder();
+        counters.forEach((name, e) -> {
+            String metric = PREFIX + name + "_total";
+            out.append("# HELP ").append(metric).append(' ').append(e.help()).append('\n');
+            out.append("# TYPE ").append(metric).append(" counter\n");
+            out.append(metric).append(' ').append(e.value().sum()).append('\n');
+        });
+        histograms.forEach((name, e) -> {
+            String metric = PREFIX + name + "_seconds";
+            out.append("# HELP ").append(metric).append(' ').append(e.help()).append('\n');
+            out.append("# TYPE ").append(metric).append(" histogram\n");
+            var h = e.value();
+            long cumulative = 0;
+            for (int i = 0; i < Histogram.BUCKETS; i++) {
+                cumulative += h.buckets.get(i);
+                // skip the sub microsecond buckets, nothing measured here is that fast
+                if (i >= 10) {
+                    out.append(metric).append("_bucket{le=\"").append((double) (1L << i + 1) / 1e9).append("\"} ")
+                            .append(cumulative).append('\n');
+                }
+            }
+            out.append(metric).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(metric).append("_sum ").append(h.sum.sum() / 1e9).append('\n');
+            out.append(metric).append("_count ").append(cumulative).append('\n');
+        });
+        gauges.forEach((name, e) -> {
+            String metric = PREFIX + name;
+            out.append("# HELP ").append(metric).append(' ').append(e.help()).append('\n');
+            out.append("# TYPE ").append(metric).append(" gauge\n");
+            out.append(metric).append(' ').append(e.value().getAsDouble()).append('\n');
+        });
+        return out.toString();
+    }
+
+    // replaced atomically, so a scraper like the node exporter textfile collector never reads half a file
+    public void writePrometheus(Path file) throws IOException {
+        var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(tmp, toPrometheus());
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // power of two nanosecond buckets, bucket i counts durations in [2^i, 2^(i + 1))
+    public static class Histogram {
+        private static final int BUCKETS = 40;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+
+        public void record(long nanos) {
+            int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(Math.max(1, nanos)));
+            buckets.incrementAndGet(bucket);
+            sum.add(nanos);
+        }
+
+        public long count() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        // upper bound of the bucket the quantile falls into
+        public long quantile(double q) {
+            long target = (long) Math.ceil(count() * q);
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += buckets.get(i);
+                if (cumulative >= target && cumulative > 0) {
+                    return 1L << i + 1;
+                }
+            }
+            return 0;
+        }
+    }
+}
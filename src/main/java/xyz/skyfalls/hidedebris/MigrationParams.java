@@ -0,0 +1,80 @@
+package xyz.skyfalls.hidedebris;
+
+import org.bukkit.Material;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+// the settings a chunk was migrated with, a config change only rescans what they don't already cover
+public record MigrationParams(int hideDebrisBelow, Set<Material> targets, Set<Material> surround,
+                              Set<Material> exposing) {
+
+    public static MigrationParams of(int hideDebrisBelow, BlockClasses classes) {
+        return new MigrationParams(hideDebrisBelow, Set.copyOf(classes.getTargets()),
+                Set.copyOf(classes.getSurround()), Set.copyOf(classes.getExposing()));
+    }
+
+    // what a chunk migrated with the previous settings has to be scanned for again, empty if nothing
+    // lowering hide-debris-below or dropping blocks from a set is never undone, so only additions count
+    public List<Rescan> rescansSince(MigrationParams previous) {
+        List<Rescan> rescans = new ArrayList<>();
+        // more debris becomes pushable or has faces to hide, anywhere in the band
+        if (!previous.surround.containsAll(surround) || !previous.exposing.containsAll(exposing)) {
+            rescans.add(new Rescan(targets, Integer.MIN_VALUE));
+            return rescans;
+        }
+        var added = new HashSet<>(targets);
+        added.removeAll(previous.targets);
+        if (!added.isEmpty()) {
+            rescans.add(new Rescan(added, Integer.MIN_VALUE));
+        }
+        // everything below the old band was handled, towers reaching into it are pushed as a whole by the full scan
+        if (hideDebrisBelow > previous.hideDebrisBelow) {
+            rescans.add(new Rescan(targets, previous.hideDebrisBelow + 1));
+        }
+        return rescans;
+    }
+
+    // one line of the params file: below;targets;surround;exposing, the sets as comma separated keys
+    public String encode() {
+        return hideDebrisBelow + ";" + encodeSet(targets) + ";" + encodeSet(surround) + ";" + encodeSet(exposing);
+    }
+
+    private static String encodeSet(Set<Material> materials) {
+        return materials.stream().map(e -> e.getKey().toString()).sorted().collect(Collectors.joining(","));
+    }
+
+    // materials a newer version removed can't be in the world any more and are left out
+    @Nullable
+    public static MigrationParams decode(String line) {
+        var parts = line.split(";", -1);
+        if (parts.length != 4) {
+            return null;
+        }
+        try {
+            return new MigrationParams(Integer.parseInt(parts[0]), decodeSet(parts[1]), decodeSet(parts[2]), decodeSet(parts[3]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Set<Material> decodeSet(String materials) {
+        if (materials.isEmpty()) {
+            return Set.of();
+        }
+        return Arrays.stream(materials.split(","))
+                .map(Material::matchMaterial)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toUnmodifiableSet());
+    }
+
+    // chunks holding one of the materials in a section from fromY up to hide-debris-below are scanned again
+    public record Rescan(Set<Material> materials, int fromY) {
+    }
+}
@@ -0,0 +1,209 @@
+package xyz.skyfalls.hidedebris;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import xyz.skyfalls.hidedebris.anvil.AnvilRegion;
+import xyz.skyfalls.hidedebris.anvil.RegionFile;
+import xyz.skyfalls.hidedebris.utils.ChangeLogWriter;
+import xyz.skyfalls.hidedebris.utils.LogFile;
+import xyz.skyfalls.hidedebris.utils.RegionUtils;
+import xyz.skyfalls.hidedebris.utils.Vec2i;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// migrates the region files of a stopped server directly, the server jar has to be on the classpath:
+// java -cp HideDebris.jar:server.jar xyz.skyfalls.hidedebris.OfflineMigrator <world folder> [options]
+public class OfflineMigrator {
+    private static final String USAGE = """
+            Usage: OfflineMigrator <world folder> [--data <plugin data folder>] [--below <y>] [--threads <count>]
+              --data     defaults to plugins/HideDebris next to the world folder
+              --below    defaults to hide-debris-below in the plugin config.yml
+              --threads  defaults to the number of available processors
+            the change log is compressed as configured by compress-change-log in the plugin config.yml,
+            and the target, surround and exposing blocks are read from it as well""";
+    private final Logger log = Logger.getLogger("HideDebris");
+    private final Path worldFolder;
+    private final Path cache;
+    private final int hideDebrisBelow;
+    private final BlockClasses classes;
+    private final ChunkProcessor processor;
+    private final ExecutorService pool;
+    private final boolean compressChangeLog;
+    private RegionProgressFile progress;
+    private ChangeLogWriter changes;
+
+    public OfflineMigrator(Path worldFolder, Path cache, int hideDebrisBelow, BlockClasses classes, int threads,
+                           boolean compressChangeLog) {
+        this.worldFolder = worldFolder;
+        this.cache = cache;
+        this.hideDebrisBelow = hideDebrisBelow;
+        this.classes = classes;
+        this.processor = new ChunkProcessor(classes);
+        this.pool = Executors.newFixedThreadPool(threads);
+        this.compressChangeLog = compressChangeLog;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length % 2 == 0) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        Path worldFolder = Path.of(args[0]).toAbsolutePath().normalize();
+        Path cache = worldFolder.resolveSibling("plugins").resolve("HideDebris");
+        Integer hideDebrisBelow = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 1; i < args.length; i += 2) {
+            switch (args[i]) {
+                case "--data" -> cache = Path.of(args[i + 1]).toAbsolutePath();
+                case "--below" -> hideDebrisBelow = Integer.parseInt(args[i + 1]);
+                case "--threads" -> threads = Integer.parseInt(args[i + 1]);
+                default -> {
+                    System.err.println(USAGE);
+                    System.exit(1);
+                }
+            }
+        }
+        var configFile = cache.resolve("config.yml");
+        var config = Files.exists(configFile) ? YamlConfiguration.loadConfiguration(configFile.toFile()) : null;
+        if (hideDebrisBelow == null) {
+            hideDebrisBelow = config != null ? config.getInt("hide-debris-below") : 60;
+        }
+        boolean compressChangeLog = config == null || config.getBoolean("compress-change-log", true);
+        var classes = config != null ? BlockClasses.fromConfig(config) : BlockClasses.DEFAULT;
+        if (threads < 1) {
+            throw new IllegalArgumentException("\"--threads\" should be at least 1");
+        }
+        Files.createDirectories(cache);
+        new OfflineMigrator(worldFolder, cache, hideDebrisBelow, classes, threads, compressChangeLog).run();
+    }
+
+    public void run() throws IOException {
+        // the server holds this lock while the world is loaded
+        try (var lockChannel = FileChannel.open(worldFolder.resolve("session.lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             var lock = lockChannel.tryLock()) {
+            if (lock == null) {
+                throw new IOException("World " + worldFolder + " is in use, stop the server first");
+            }
+            migrateWorld();
+        } catch (OverlappingFileLockException e) {
+            throw new IOException("World " + worldFolder + " is in use, stop the server first", e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void migrateWorld() throws IOException {
+        String worldName = worldFolder.getFileName().toString();
+        Path regionFolder = RegionUtils.getRegionFolder(worldFolder);
+        this.progress = RegionProgressFile.open(cache, worldName);
+        this.changes = new ChangeLogWriter(cache.resolve(worldName + ".changes"), compressChangeLog);
+        var allRegions = RegionUtils.getRegions(regionFolder);
+        progress.useParams(MigrationParams.of(hideDebrisBelow, classes));
+        int rescans = progress.reconcile(regionFolder, allRegions, new DebrisIndexer(pool, hideDebrisBelow, classes));
+        if (rescans > 0) {
+            log.info("%d chunks were migrated with other settings and are migrated again".formatted(rescans));
+        }
+        var regions = allRegions.stream()
+                .filter(e -> !progress.isRegionDone(e.x(), e.z()))
+                .toList();
+        log.info("Starting offline migration of world %s, %d region files left, hide-debris-below=%d"
+                .formatted(worldName, regions.size(), hideDebrisBelow));
+        Path logFolder = cache.resolve("logs");
+        Files.createDirectories(logFolder);
+        AtomicInteger regionsMigrated = new AtomicInteger();
+        long start = System.nanoTime();
+        var futures = regions.stream().map(region -> CompletableFuture.runAsync(() -> {
+            int chunks;
+            try {
+                chunks = migrateRegion(RegionUtils.getRegionFile(regionFolder, region), logFolder, region);
+            } catch (IOException | UncheckedIOException e) {
+                log.log(Level.WARNING, "Failed to migrate region %d, %d".formatted(region.x(), region.z()), e);
+                return;
+            }
+            log.info("Region %d, %d migrated, totalChunks=%d, progress=%d/%d"
+                    .formatted(region.x(), region.z(), chunks, regionsMigrated.incrementAndGet(), regions.size()));
+        }, pool)).toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(futures).join();
+        changes.close();
+        progress.close();
+        log.info("Finished migrating world %s in %ds".formatted(worldName, (System.nanoTime() - start) / 1_000_000_000));
+    }
+
+    private int migrateRegion(Path file, Path logFolder, Vec2i region) throws IOException {
+        var anvil = AnvilRegion.read(file);
+        LogFile changeLog = new LogFile(logFolder, region);
+        int totalChunks = 0;
+        int pushed = 0;
+        int hiddenBlocks = 0;
+        List<MigratedChunk> migrated = new ArrayList<>();
+        for (int localZ = 0; localZ < 32; localZ++) {
+            for (int localX = 0; localX < 32; localX++) {
+                // left by the online migrator, or by an earlier run with settings this change doesn't reach
+                if (!anvil.hasChunk(localX, localZ)
+                        || progress.isChunkDone(region.x() * 32 + localX, region.z() * 32 + localZ)) {
+                    continue;
+                }
+                var chunk = anvil.getChunk(localX, localZ);
+                if (chunk == null) {
+                    continue;
+                }
+                totalChunks++;
+                var edits = new ChunkEdits();
+                var access = IRegionAccess.from(anvil, localX, localZ, edits);
+                var debrisMarked = processor.scanDebris(access, chunk.getMinY(), this.hideDebrisBelow);
+                var allDebris = processor.pushDown(access, debrisMarked);
+                var hidden = processor.hideExposed(access, allDebris);
+                pushed += debrisMarked.countFlagged();
+                hiddenBlocks += hidden.size();
+                migrated.add(new MigratedChunk(localX, localZ, edits));
+            }
+        }
+        var dropped = anvil.save();
+        // edits only count once the region file holds them, chunks that lost some are migrated again later
+        var unfinished = (BitSet) dropped.clone();
+        for (MigratedChunk e : migrated) {
+            var edits = e.edits();
+            var written = dropped.isEmpty() ? edits : new ChunkEdits();
+            if (!dropped.isEmpty()) {
+                for (int i = 0; i < edits.size(); i++) {
+                    if (dropped.get(RegionFile.index(e.localX() + (edits.x(i) >> 4), e.localZ() + (edits.z(i) >> 4)))) {
+                        unfinished.set(RegionFile.index(e.localX(), e.localZ()));
+                    } else {
+                        written.record(edits.x(i), edits.y(i), edits.z(i), edits.expected(i), edits.updated(i));
+                    }
+                }
+            }
+            changes.append(region.x() * 32 + e.localX(), region.z() * 32 + e.localZ(), written);
+        }
+        changeLog.log("totalChunks=%d, pushed=%d, hidden=%d", totalChunks, pushed, hiddenBlocks);
+        if (!dropped.isEmpty()) {
+            log.warning("Region %d, %d: %d chunks grew too large for the region file and were left unmodified"
+                    .formatted(region.x(), region.z(), dropped.cardinality()));
+            changeLog.log("droppedChunks=%d, unfinishedChunks=%d", dropped.cardinality(), unfinished.cardinality());
+        }
+        // the region file is replaced atomically, so progress is written once per region
+        progress.markRegionDone(region.x(), region.z(), unfinished);
+        progress.force();
+        changeLog.log("Marked region as finished");
+        changeLog.flushAndClose();
+        return totalChunks;
+    }
+
+    private record MigratedChunk(int localX, int localZ, ChunkEdits edits) {
+    }
+}
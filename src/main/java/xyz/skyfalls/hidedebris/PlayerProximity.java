@@ -0,0 +1,60 @@
+package xyz.skyfalls.hidedebris;
+
+import org.bukkit.World;
+
+import java.util.concurrent.CountDownLatch;
+
+// chunk positions of the players in a world, refreshed on the main thread and read by the migrator
+// a chunk is near a player if it is within view distance plus a margin for the neighbours the migrator reads
+public class PlayerProximity {
+    private static final int MARGIN_CHUNKS = 2;
+    private final World world;
+    private final CountDownLatch updated = new CountDownLatch(1);
+    // x and z of every player's chunk, replaced as a whole so readers never see a half written update
+    private volatile int[] players = new int[0];
+    private volatile int radius;
+
+    public PlayerProximity(World world) {
+        this.world = world;
+    }
+
+    // main thread
+    public void update() {
+        var online = world.getPlayers();
+        int[] positions = new int[online.size() * 2];
+        for (int i = 0; i < online.size(); i++) {
+            var location = online.get(i).getLocation();
+            positions[i * 2] = location.getBlockX() >> 4;
+            positions[i * 2 + 1] = location.getBlockZ() >> 4;
+        }
+        radius = world.getViewDistance() + MARGIN_CHUNKS;
+        players = positions;
+        updated.countDown();
+    }
+
+    public void awaitFirstUpdate() throws InterruptedException {
+        updated.await();
+    }
+
+    public boolean isChunkNear(int chunkX, int chunkZ) {
+        return isAreaNear(chunkX, chunkZ, chunkX, chunkZ);
+    }
+
+    public boolean isRegionNear(int regionX, int regionZ) {
+        return isAreaNear(regionX << 5, regionZ << 5, (regionX << 5) + 31, (regionZ << 5) + 31);
+    }
+
+    // chebyshev distance from each player's chunk to the rectangle, the same shape as the server's view distance
+    private boolean isAreaNear(int minX, int minZ, int maxX, int maxZ) {
+        int[] positions = players;
+        int r = radius;
+        for (int i = 0; i < positions.length; i += 2) {
+            int dx = Math.max(0, Math.max(minX - positions[i], positions[i] - maxX));
+            int dz = Math.max(0, Math.max(minZ - positions[i + 1], positions[i + 1] - maxZ));
+            if (dx <= r && dz <= r) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -9,16 +9,26 @@ import java.util.Random;
 
 public class PostprocessingPopulator extends BlockPopulator {
     private final int maxY;
+    private final ChunkProcessor processor;
+    private final Metrics metrics;
 
-    public PostprocessingPopulator(int maxY) {
+    public PostprocessingPopulator(int maxY, BlockClasses classes, Metrics metrics) {
         this.maxY = maxY;
+        this.processor = new ChunkProcessor(classes);
+        this.metrics = metrics;
     }
 
     @Override
     public void populate(@Nonnull WorldInfo worldInfo, @Nonnull Random random, int chunkX, int chunkZ, @Nonnull LimitedRegion limitedRegion) {
+        long start = System.nanoTime();
+        // LimitedRegion has no bulk read, the scan already reads each block about once so it works on the region directly
         var chunk = IRegionAccess.from(limitedRegion, chunkX, chunkZ);
-        var debris = ChunkProcessor.scanDebris(chunk, worldInfo.getMinHeight(), maxY, 3);
-        var debris2 = ChunkProcessor.pushDown(chunk, debris);
-        ChunkProcessor.hideExposed(chunk, debris2);
+        var debris = processor.scanDebris(chunk, worldInfo.getMinHeight(), maxY, 3);
+        var debris2 = processor.pushDown(chunk, debris);
+        var hidden = processor.hideExposed(chunk, debris2);
+        metrics.populateTime.record(System.nanoTime() - start);
+        metrics.populatedChunks.increment();
+        metrics.populatorPushed.add(debris.countFlagged());
+        metrics.populatorHidden.add(hidden.size());
     }
 }
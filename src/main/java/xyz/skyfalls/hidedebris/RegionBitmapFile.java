@@ -0,0 +1,215 @@
+package xyz.skyfalls.hidedebris;
+
+import xyz.skyfalls.hidedebris.utils.LongIntHashMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// memory mapped 1024 bit chunk bitmaps, one slot per region
+// writes land in the page cache right away, so a killed server loses nothing that was set
+// layout: magic, version, slot count, parameter, then slots of region key (long) + tag (long) + 16 longs of bitmap
+// the tag is free for subclasses to record how a region's bitmap came about, 0 until set
+// a file written with a different parameter is discarded on open, version 1 files had no tag and are upgraded
+public class RegionBitmapFile implements AutoCloseable {
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 16;
+    private static final int BITMAP_LONGS = 16;
+    private static final int SLOT_BYTES = 16 + BITMAP_LONGS * 8;
+    private static final int V1_SLOT_BYTES = 8 + BITMAP_LONGS * 8;
+    private final FileChannel channel;
+    private final int magic;
+    private final int parameter;
+    private final LongIntHashMap slots = new LongIntHashMap();
+    private MappedByteBuffer buffer;
+    private int slotCount;
+    private int capacity;
+    private int newSlotTag;
+
+    protected RegionBitmapFile(Path path, int magic, int parameter) throws IOException {
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.magic = magic;
+        this.parameter = parameter;
+        load();
+    }
+
+    private void load() throws IOException {
+        long size = channel.size();
+        ByteBuffer legacy = null;
+        if (size >= HEADER_BYTES) {
+            map((int) Math.max(64, (size - HEADER_BYTES) / SLOT_BYTES));
+            int version = buffer.getInt(4);
+            if (buffer.getInt(0) != magic || version != VERSION && version != 1) {
+                throw new IOException("Not a HideDebris bitmap file or an unsupported version");
+            }
+            if (buffer.getInt(12) == parameter) {
+                if (version == VERSION) {
+                    slotCount = buffer.getInt(8);
+                    for (int i = 0; i < slotCount; i++) {
+                        slots.put(buffer.getLong(slotOffset(i)), i);
+                    }
+                    return;
+                }
+                // read through the channel, the mapping above may end inside the last version 1 slot
+                legacy = ByteBuffer.allocate((int) size);
+                channel.read(legacy, 0);
+            }
+            channel.truncate(0);
+        }
+        map(64);
+        buffer.putInt(0, magic);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, 0);
+        buffer.putInt(12, parameter);
+        if (legacy != null) {
+            int count = legacy.getInt(8);
+            for (int i = 0; i < count; i++) {
+                int offset = HEADER_BYTES + i * V1_SLOT_BYTES;
+                long key = legacy.getLong(offset);
+                long[] bitmap = new long[BITMAP_LONGS];
+                for (int j = 0; j < BITMAP_LONGS; j++) {
+                    bitmap[j] = legacy.getLong(offset + 8 + j * 8);
+                }
+                putRegion((int) (key >> 32), (int) key, bitmap);
+            }
+        }
+    }
+
+    private void map(int capacity) throws IOException {
+        this.capacity = capacity;
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) capacity * SLOT_BYTES);
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    private static long key(int regionX, int regionZ) {
+        return (long) regionX << 32 | regionZ & 0xffffffffL;
+    }
+
+    private int slot(int regionX, int regionZ, boolean create) throws IOException {
+        long key = key(regionX, regionZ);
+        int slot = slots.get(key);
+        if (slot >= 0 || !create) {
+            return slot;
+        }
+        if (slotCount == capacity) {
+            map(capacity * 2);
+        }
+        slot = slotCount++;
+        buffer.putLong(slotOffset(slot), key);
+        buffer.putLong(slotOffset(slot) + 8, newSlotTag);
+        buffer.putInt(8, slotCount);
+        slots.put(key, slot);
+        return slot;
+    }
+
+    private static int bit(int chunkX, int chunkZ) {
+        return (chunkZ & 31) * 32 + (chunkX & 31);
+    }
+
+    // byte offset of the long holding the bit of a chunk
+    private static int bitOffset(int slot, int bit) {
+        return slotOffset(slot) + 16 + (bit >> 6) * 8;
+    }
+
+    private static int bitmapOffset(int slot) {
+        return slotOffset(slot) + 16;
+    }
+
+    // regions created from now on start with this tag
+    protected synchronized void setNewSlotTag(int tag) {
+        this.newSlotTag = tag;
+    }
+
+    // 0 if the region has no slot or its tag was never set
+    public synchronized int getTag(int regionX, int regionZ) {
+        int slot = slots.get(key(regionX, regionZ));
+        return slot < 0 ? 0 : (int) buffer.getLong(slotOffset(slot) + 8);
+    }
+
+    public synchronized void setTag(int regionX, int regionZ, int tag) throws IOException {
+        int slot = slot(regionX, regionZ, true);
+        buffer.putLong(slotOffset(slot) + 8, tag);
+    }
+
+    public synchronized boolean hasRegion(int regionX, int regionZ) {
+        return slots.get(key(regionX, regionZ)) >= 0;
+    }
+
+    public synchronized boolean get(int chunkX, int chunkZ) {
+        int slot = slots.get(key(chunkX >> 5, chunkZ >> 5));
+        if (slot < 0) {
+            return false;
+        }
+        int bit = bit(chunkX, chunkZ);
+        return (buffer.getLong(bitOffset(slot, bit)) & 1L << (bit & 63)) != 0;
+    }
+
+    public synchronized void set(int chunkX, int chunkZ) throws IOException {
+        int slot = slot(chunkX >> 5, chunkZ >> 5, true);
+        int bit = bit(chunkX, chunkZ);
+        int offset = bitOffset(slot, bit);
+        buffer.putLong(offset, buffer.getLong(offset) | 1L << (bit & 63));
+    }
+
+    public synchronized boolean isRegionFull(int regionX, int regionZ) {
+        int slot = slots.get(key(regionX, regionZ));
+        if (slot < 0) {
+            return false;
+        }
+        for (int i = 0; i < BITMAP_LONGS; i++) {
+            if (buffer.getLong(bitmapOffset(slot) + i * 8) != -1L) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // replaces the bitmap of a region, bit localZ * 32 + localX of the given words
+    public synchronized void putRegion(int regionX, int regionZ, long[] bitmap) throws IOException {
+        int slot = slot(regionX, regionZ, true);
+        for (int i = 0; i < BITMAP_LONGS; i++) {
+            buffer.putLong(bitmapOffset(slot) + i * 8, i < bitmap.length ? bitmap[i] : 0);
+        }
+    }
+
+    // clears every bit of a region that isn't set in the mask, returns how many were cleared
+    public synchronized int retainRegion(int regionX, int regionZ, long[] mask) {
+        int slot = slots.get(key(regionX, regionZ));
+        if (slot < 0) {
+            return 0;
+        }
+        int cleared = 0;
+        for (int i = 0; i < BITMAP_LONGS; i++) {
+            long bits = buffer.getLong(bitmapOffset(slot) + i * 8);
+            long kept = bits & (i < mask.length ? mask[i] : 0);
+            cleared += Long.bitCount(bits & ~kept);
+            buffer.putLong(bitmapOffset(slot) + i * 8, kept);
+        }
+        return cleared;
+    }
+
+    public synchronized void fillRegion(int regionX, int regionZ) throws IOException {
+        int slot = slot(regionX, regionZ, true);
+        for (int i = 0; i < BITMAP_LONGS; i++) {
+            buffer.putLong(bitmapOffset(slot) + i * 8, -1L);
+        }
+    }
+
+    // flushes to disk, only needed to survive an OS crash
+    public synchronized void force() {
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+}
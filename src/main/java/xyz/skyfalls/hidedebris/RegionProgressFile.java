@@ -0,0 +1,129 @@
+package xyz.skyfalls.hidedebris;
+
+import xyz.skyfalls.hidedebris.utils.RegionUtils;
+import xyz.skyfalls.hidedebris.utils.Vec2i;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.logging.Logger;
+
+// per chunk completion bitmaps of a world
+// each region is tagged with the id of the settings its chunks were migrated with, the settings are listed
+// one per line in <world>.params, line n being id n, tag 0 is progress from before the settings were recorded
+public class RegionProgressFile extends RegionBitmapFile {
+    private static final int MAGIC = 0x48445047;
+    private static final Logger log = Logger.getLogger("HideDebris");
+    private final Path paramsFile;
+    private final List<MigrationParams> params = new ArrayList<>();
+    private MigrationParams current;
+    private int currentId;
+
+    private RegionProgressFile(Path path, Path paramsFile) throws IOException {
+        super(path, MAGIC, 0);
+        this.paramsFile = paramsFile;
+        if (Files.exists(paramsFile)) {
+            Files.readAllLines(paramsFile).forEach(e -> params.add(MigrationParams.decode(e)));
+        }
+    }
+
+    // regions recorded in the legacy <world>.regions file are imported as fully migrated
+    public static RegionProgressFile open(Path cache, String worldName) throws IOException {
+        var file = new RegionProgressFile(cache.resolve(worldName + ".progress"), cache.resolve(worldName + ".params"));
+        var legacy = cache.resolve(worldName + ".regions");
+        if (Files.exists(legacy)) {
+            var regions = new AppendOnlyVec2iSet(legacy);
+            regions.open();
+            regions.close();
+            for (Vec2i region : regions) {
+                file.markRegionDone(region.x(), region.z());
+            }
+            file.force();
+            Files.move(legacy, legacy.resolveSibling(legacy.getFileName() + ".imported"),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file;
+    }
+
+    public boolean isChunkDone(int chunkX, int chunkZ) {
+        return get(chunkX, chunkZ);
+    }
+
+    public void markChunkDone(int chunkX, int chunkZ) throws IOException {
+        set(chunkX, chunkZ);
+    }
+
+    public boolean isRegionDone(int regionX, int regionZ) {
+        return isRegionFull(regionX, regionZ);
+    }
+
+    // also covers chunks that weren't generated, those are left to the populator
+    public void markRegionDone(int regionX, int regionZ) throws IOException {
+        fillRegion(regionX, regionZ);
+    }
+
+    // like markRegionDone, except for the chunks, by local index, that are left for a later run
+    public void markRegionDone(int regionX, int regionZ, BitSet unfinished) throws IOException {
+        var done = new BitSet(32 * 32);
+        done.set(0, 32 * 32);
+        done.andNot(unfinished);
+        putRegion(regionX, regionZ, done.toLongArray());
+    }
+
+    // chunks marked done from now on were migrated with these settings
+    public synchronized void useParams(MigrationParams current) throws IOException {
+        int index = params.indexOf(current);
+        if (index < 0) {
+            params.add(current);
+            Files.write(paramsFile, params.stream().map(e -> e == null ? "" : e.encode()).toList());
+            index = params.size() - 1;
+        }
+        this.current = current;
+        this.currentId = index + 1;
+        setNewSlotTag(currentId);
+    }
+
+    // regions migrated with other settings keep only the chunks the change doesn't reach, the others are migrated
+    // again and the region is tagged with the current settings, returns how many chunks have to be migrated again
+    // progress from before the settings were recorded is assumed to match the current ones, settings that are
+    // unknown, because the params file was lost or a line no longer decodes, are assumed to cover nothing
+    public int reconcile(Path regionFolder, List<Vec2i> regions, DebrisIndexer indexer) throws IOException {
+        var fullRescan = List.of(new MigrationParams.Rescan(current.targets(), Integer.MIN_VALUE));
+        int cleared = 0;
+        int unknown = 0;
+        for (Vec2i region : regions) {
+            int id = getTag(region.x(), region.z());
+            if (!hasRegion(region.x(), region.z()) || id == currentId) {
+                continue;
+            }
+            List<MigrationParams.Rescan> rescans;
+            if (id == 0) {
+                rescans = List.of();
+            } else if (id <= params.size() && params.get(id - 1) != null) {
+                rescans = current.rescansSince(params.get(id - 1));
+            } else {
+                rescans = fullRescan;
+                unknown++;
+            }
+            if (!rescans.isEmpty()) {
+                var keep = indexer.findUnaffectedChunks(regionFolder, region, rescans);
+                // chunks missing from the region file are never migrated, their bits are left as they are
+                var absent = RegionUtils.getPresentChunks(RegionUtils.getRegionFile(regionFolder, region));
+                absent.flip(0, 32 * 32);
+                keep.or(absent);
+                cleared += retainRegion(region.x(), region.z(), keep.toLongArray());
+            }
+            setTag(region.x(), region.z(), currentId);
+        }
+        force();
+        if (unknown > 0) {
+            log.warning("%d regions were migrated with settings missing from %s, they are checked again entirely"
+                    .formatted(unknown, paramsFile.getFileName()));
+        }
+        return cleared;
+    }
+}
@@ -0,0 +1,102 @@
+package xyz.skyfalls.hidedebris;
+
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import xyz.skyfalls.hidedebris.utils.ChangeLogReader;
+import xyz.skyfalls.hidedebris.utils.Vec2i;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// undoes a migration by streaming the change log of a world backwards and restoring the old blocks chunk by chunk
+// blocks that changed again since the migration are left alone
+public class Rollback extends Thread {
+    // chunks handed to the main thread but not applied yet, keeps the log streaming instead of loaded into memory
+    private static final int MAX_QUEUED_CHUNKS = 64;
+    private final Logger log;
+    private final World world;
+    private final Path changeLog;
+    private final MainThreadExecutor mainThread;
+    private final CommandSender sender;
+
+    public Rollback(HideDebris plugin, World world, Path changeLog, MainThreadExecutor mainThread,
+                    CommandSender sender) {
+        super("HideDebris rollback " + world.getName());
+        this.log = plugin.getLogger();
+        this.world = world;
+        this.changeLog = changeLog;
+        this.mainThread = mainThread;
+        this.sender = sender;
+    }
+
+    @Override
+    public void run() {
+        Semaphore queued = new Semaphore(MAX_QUEUED_CHUNKS);
+        AtomicInteger restored = new AtomicInteger();
+        AtomicInteger skipped = new AtomicInteger();
+        long start = System.nanoTime();
+        try (var reader = new ChangeLogReader(changeLog)) {
+            ChangeLogReader.Frame frame;
+            while ((frame = reader.previous()) != null) {
+                Map<Vec2i, ChunkEdits> chunks = new LinkedHashMap<>();
+                for (int i = frame.size() - 1; i >= 0; i--) {
+                    var oldType = frame.oldType(i);
+                    var newType = frame.newType(i);
+                    if (oldType == null || newType == null) {
+                        skipped.incrementAndGet();
+                        continue;
+                    }
+                    int x = frame.x(i);
+                    int z = frame.z(i);
+                    // walking backwards the first expected is the newest block and the last update the original one
+                    chunks.computeIfAbsent(new Vec2i(x >> 4, z >> 4), k -> new ChunkEdits())
+                            .record(x & 15, frame.y(i), z & 15, newType, oldType);
+                }
+                for (Map.Entry<Vec2i, ChunkEdits> e : chunks.entrySet()) {
+                    queued.acquire();
+                    var pos = e.getKey();
+                    var edits = e.getValue();
+                    mainThread.execute(() -> {
+                        try {
+                            int written = edits.applyMatching(IRegionAccess.from(world, pos.x(), pos.z()));
+                            restored.addAndGet(written);
+                            skipped.addAndGet(edits.size() - written);
+                        } finally {
+                            queued.release();
+                        }
+                    });
+                }
+            }
+            queued.acquire(MAX_QUEUED_CHUNKS);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Rollback of world %s failed".formatted(world.getName()), e);
+            report("Rollback of world %s failed, see the console".formatted(world.getName()));
+            return;
+        } catch (InterruptedException e) {
+            log.warning("Rollback of world %s interrupted, run it again to finish".formatted(world.getName()));
+            return;
+        }
+        try {
+            // a second rollback would only find conflicts, keep the log around for reference
+            Files.move(changeLog, changeLog.resolveSibling(changeLog.getFileName() + ".rolledback"),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to rename change log " + changeLog, e);
+        }
+        report("Rolled back world %s in %ds, restored=%d, skipped=%d".formatted(world.getName(),
+                (System.nanoTime() - start) / 1_000_000_000, restored.get(), skipped.get()));
+    }
+
+    private void report(String message) {
+        log.info(message);
+        mainThread.execute(() -> sender.sendMessage(message));
+    }
+}
@@ -2,148 +2,718 @@ package xyz.skyfalls.hidedebris;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
 import org.bukkit.World;
+import xyz.skyfalls.hidedebris.utils.ChangeLogWriter;
 import xyz.skyfalls.hidedebris.utils.LogFile;
 import xyz.skyfalls.hidedebris.utils.RegionUtils;
-import xyz.skyfalls.hidedebris.utils.Tuple3;
 import xyz.skyfalls.hidedebris.utils.Vec2i;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 public class WorldMigrator extends Thread {
+    // chunks that keep changing between snapshot and apply are given up on after this many tries
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long REPORT_INTERVAL_MILLIS = 60_000;
+    private static final long PROXIMITY_UPDATE_TICKS = 20;
+    private static final long DEFERRED_RETRY_MILLIS = 5_000;
+    // snapshots along region borders are kept for the regions that haven't been launched yet, regions come in hilbert
+    // order so the region on the other side of a border is usually among the next few
+    private static final long BORDER_SNAPSHOT_MAX_AGE_NANOS = 30_000_000_000L;
     private final Logger log;
     private final HideDebris plugin;
     private final int hideDebrisBelow;
+    private final BlockClasses classes;
+    private final ChunkProcessor processor;
     private final ExecutorService pool;
     private final List<World> worlds;
     private final Path cache;
-    private final int batchSize;
-    private final int ticksPerBatch;
-    private AppendOnlyVec2iSet regionsMigrated;
+    private final MainThreadExecutor mainThread;
+    private final int checkerThreadCount;
+    private final int scanWindow;
+    private final int lookAheadRegions;
+    private final int cachedSnapshotsPerWorld;
+    private final ChunkWindow chunkWindow;
+    private final ChunkSource chunkSource;
+    private final DebrisIndexer indexer;
+    private final boolean compressChangeLog;
+    private final Metrics metrics;
+    private final List<WorldMigration> migrations = new CopyOnWriteArrayList<>();
 
-    public WorldMigrator(HideDebris plugin, int hideDebrisBelow, int checkerThreadCount,
-                         List<World> worlds, Path cache, int batchSize, int ticksPerBatch) {
+    public WorldMigrator(HideDebris plugin, int hideDebrisBelow, BlockClasses classes, int checkerThreadCount,
+                         List<World> worlds, Path cache, MainThreadExecutor mainThread, int lookAheadRegions,
+                         int maxLoadedChunks, int maxCachedSnapshots, ChunkSource chunkSource,
+                         boolean compressChangeLog, Metrics metrics) {
         this.plugin = plugin;
         this.log = plugin.getLogger();
         this.hideDebrisBelow = hideDebrisBelow;
+        this.classes = classes;
+        this.processor = new ChunkProcessor(classes);
         this.pool = Executors.newWorkStealingPool(checkerThreadCount);
+        this.checkerThreadCount = checkerThreadCount;
+        // enough queued work to keep every worker busy while the next chunks load,
+        // async loads spend most of their time waiting on io so as many as may be loaded are requested at once
+        this.scanWindow = chunkSource.isAsync() ? maxLoadedChunks : Math.min(checkerThreadCount * 4, maxLoadedChunks);
+        this.chunkSource = chunkSource;
         this.worlds = worlds;
         this.cache = cache;
-        this.batchSize = batchSize;
-        this.ticksPerBatch = ticksPerBatch;
+        this.mainThread = mainThread;
+        this.lookAheadRegions = lookAheadRegions;
+        this.cachedSnapshotsPerWorld = maxCachedSnapshots / Math.max(1, worlds.size());
+        this.chunkWindow = new ChunkWindow(maxLoadedChunks);
+        this.indexer = new DebrisIndexer(pool, hideDebrisBelow, classes);
+        this.compressChangeLog = compressChangeLog;
+        this.metrics = metrics;
+        var forkJoinPool = (ForkJoinPool) pool;
+        metrics.gauge("pool_active_threads", "Busy scan and compute threads", forkJoinPool::getActiveThreadCount);
+        metrics.gauge("pool_parallelism", "Size of the scan and compute pool", forkJoinPool::getParallelism);
+        metrics.gauge("pool_queued_tasks", "Scan and compute tasks waiting for a thread",
+                forkJoinPool::getQueuedSubmissionCount);
+        metrics.gauge("loaded_chunks", "Chunks currently loaded by the migrator", chunkWindow::getLoaded);
     }
 
+    // every world is driven by its own thread, they share the worker pool, the loaded chunk window
+    // and the main thread budget, which is split fairly between them
     @Override
     public void run() {
+        log.info("Loading chunks " + (chunkSource.isAsync() ? "asynchronously" : "on the main thread"));
         for (World e : worlds) {
-            log.info("Starting background migration for world " + e.getName());
-            try {
-                this.migrateWorld(e);
-            } catch (IOException ex) {
-                log.log(Level.WARNING, "World migration failed due to error", ex);
-                break;
+            migrations.add(new WorldMigration(e, mainThread.newLane()));
+        }
+        var proximityTask = Bukkit.getScheduler().runTaskTimer(plugin,
+                () -> migrations.forEach(e -> e.proximity.update()), 0, PROXIMITY_UPDATE_TICKS);
+        migrations.forEach(Thread::start);
+        try {
+            while (migrations.stream().anyMatch(Thread::isAlive)) {
+                Thread.sleep(REPORT_INTERVAL_MILLIS);
+                for (WorldMigration e : migrations) {
+                    if (e.isAlive()) {
+                        log.info(e.report());
+                    }
+                }
             }
-            if (this.isInterrupted()) {
-                return;
+        } catch (InterruptedException e) {
+            log.warning("WorldMigrator interrupted, stopping migration");
+            migrations.forEach(Thread::interrupt);
+            for (WorldMigration migration : migrations) {
+                try {
+                    migration.join();
+                } catch (InterruptedException ignored) {
+                }
             }
+            pool.shutdownNow();
+            return;
+        } finally {
+            proximityTask.cancel();
         }
+        pool.shutdown();
         log.info("All worlds have been migrated");
     }
 
     public void forceExit() {
-        try {
-            regionsMigrated.writeAndFlush();
-            regionsMigrated.close();
-        } catch (IOException e) {
-            log.log(Level.WARNING, "Failed to persist process file", e);
+        for (WorldMigration e : migrations) {
+            try {
+                e.closeFiles();
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Failed to persist process file of world " + e.world.getName(), ex);
+            }
         }
-        log.info("Progress file saved");
+        log.info("Progress files saved");
     }
 
-    private void migrateWorld(World world) throws IOException {
-        this.regionsMigrated = new AppendOnlyVec2iSet(cache.resolve(world.getName() + ".regions"));
-        regionsMigrated.open();
-        List<Vec2i> regions;
-        try {
-            regions = RegionUtils.getRegions(world);
-        } catch (IOException e) {
-            log.warning("Failed to list region files in world " + world.getName());
-            throw e;
-        }
-        log.info("Starting migration of world %s, %d region files total".formatted(world.getName(), regions.size()));
-        int regionsMigratedThisRun = 0;
-        Path logFolder = cache.resolve("logs");
-        Files.createDirectories(logFolder);
-        for (int i = 0; i < regions.size(); i++) {
-            Vec2i region = regions.get(i);
-            if (regionsMigrated.contains(region)) {
-                continue;
-            }
-            LogFile changeLog = new LogFile(logFolder, region);
-            var chunks = RegionUtils.getChunksInRegion(region)
-                    .map(e -> world.getChunkAt(e.x(), e.z(), false))
-                    .filter(Chunk::isGenerated)
-                    .map(chunk -> CompletableFuture.supplyAsync(() -> {
-                        // avoid accessing Chunk data in a async task
-                        var snapshot = chunk.getChunkSnapshot();
-                        return new Tuple3<>(chunk,
-                                ChunkProcessor.scanDebris(IRegionAccess.from(snapshot), world.getMinHeight(), this.hideDebrisBelow),
-                                new Vec2i(chunk.getX(), chunk.getZ()));
-                    }, pool))
-                    .map(CompletableFuture::join).toList();
-            changeLog.log("totalChunks=%d", chunks.size());
-
-            CountDownLatch latch = new CountDownLatch(chunks.size());
-            AtomicInteger counter = new AtomicInteger();
-            var map = chunks.stream()
-                    .collect(Collectors.groupingBy(x -> counter.getAndIncrement() / batchSize));
-            map.forEach((key, value) -> Bukkit.getScheduler().runTaskLater(plugin, () -> {
-                value.forEach(e -> {
-                    var debrisMarked = e.b();
-                    var chunk = e.a();
-                    var access = IRegionAccess.from(world, chunk.getX(), chunk.getZ());
-                    var allDebris = ChunkProcessor.pushDown(access, debrisMarked);
-                    var hidden = ChunkProcessor.hideExposed(access, allDebris);
+    private record ScannedChunk(Vec2i pos, ChunkSnapshot snapshot, DebrisSet debris) {
+    }
+
+    private record BorderSnapshot(ChunkSnapshot snapshot, long takenNanos) {
+    }
+
+    private record ComputedChunk(Vec2i pos, DebrisSet debris, DebrisSet hidden, ChunkEdits edits) {
+    }
+
+    // a region moving through the stages, the fields are handed between threads through the stage queues
+    private static class RegionJob {
+        private final Vec2i region;
+        private final LogFile changeLog;
+        private final AtomicInteger lookupsSaved = new AtomicInteger();
+        private final AtomicInteger conflicts = new AtomicInteger();
+        private final AtomicInteger pushed = new AtomicInteger();
+        private final AtomicInteger hidden = new AtomicInteger();
+        private final List<Vec2i> conflicted = Collections.synchronizedList(new ArrayList<>());
+        private List<Vec2i> pending;
+        private int attempt;
+        private int totalChunks = -1;
+        private long scanMillis;
+
+        private RegionJob(Vec2i region, LogFile changeLog) {
+            this.region = region;
+            this.changeLog = changeLog;
+        }
+    }
+
+    // the region pipeline of one world
+    private class WorldMigration extends Thread {
+        private final World world;
+        // apply and unload jobs of this world, the executor takes turns between the lanes of all worlds
+        private final Executor mainThread;
+        // location tables of this world, only touched by this thread
+        private final Map<Vec2i, BitSet> presentChunks = new HashMap<>();
+        private final Path regionFolder;
+        private final PlayerProximity proximity;
+        // only touched by this thread
+        private final Map<Vec2i, BorderSnapshot> borderSnapshots = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Vec2i, BorderSnapshot> eldest) {
+                return size() > cachedSnapshotsPerWorld;
+            }
+        };
+        // regions not launched yet, only touched by this thread
+        private final Set<Vec2i> queued = new HashSet<>();
+        // per region, the chunks loaded for a snapshot so far, to count the ones loaded more than once
+        private final Map<Vec2i, BitSet> loadedChunks = new HashMap<>();
+        private RegionProgressFile progress;
+        private DebrisIndex index;
+        private ChangeLogWriter changes;
+        private final long start = System.nanoTime();
+        private volatile int regionsTotal;
+        private volatile int regionsMigrated;
+        private volatile long chunksMigrated;
+        private volatile long chunkLoads;
+        private volatile long redundantLoads;
+
+        private WorldMigration(World world, Executor mainThread) {
+            super("HideDebris migrator " + world.getName());
+            this.world = world;
+            this.mainThread = mainThread;
+            this.regionFolder = RegionUtils.getRegionFolder(world.getWorldFolder().toPath());
+            this.proximity = new PlayerProximity(world);
+        }
+
+        @Override
+        public void run() {
+            log.info("Starting background migration for world " + world.getName());
+            try {
+                migrateWorld();
+            } catch (IOException | RuntimeException ex) {
+                log.log(Level.WARNING, "Migration of world %s failed due to error".formatted(world.getName()), ex);
+            } finally {
+                try {
+                    closeFiles();
+                } catch (IOException ex) {
+                    log.log(Level.WARNING, "Failed to persist process file of world " + world.getName(), ex);
+                }
+            }
+        }
+
+        private String report() {
+            double seconds = Math.max(1, (System.nanoTime() - start) / 1_000_000_000.0);
+            return "World %s: %d/%d regions, %d chunks, %.1f chunks/s, %d chunk loads of which %d redundant"
+                    .formatted(world.getName(), regionsMigrated, regionsTotal, chunksMigrated, chunksMigrated / seconds,
+                            chunkLoads, redundantLoads);
+        }
+
+        // also called from forceExit, closing twice is harmless
+        private synchronized void closeFiles() throws IOException {
+            if (progress != null) {
+                progress.close();
+            }
+            if (index != null) {
+                index.close();
+            }
+            if (changes != null) {
+                changes.close();
+            }
+        }
+
+        private void migrateWorld() throws IOException {
+            this.progress = RegionProgressFile.open(cache, world.getName());
+            this.index = DebrisIndex.open(cache, world.getName(), hideDebrisBelow, classes);
+            this.changes = new ChangeLogWriter(cache.resolve(world.getName() + ".changes"), compressChangeLog);
+            List<Vec2i> regions;
+            try {
+                regions = RegionUtils.getRegions(world);
+            } catch (IOException e) {
+                log.warning("Failed to list region files in world " + world.getName());
+                throw e;
+            }
+            log.info("Starting migration of world %s, %d region files total".formatted(world.getName(), regions.size()));
+            progress.useParams(MigrationParams.of(hideDebrisBelow, classes));
+            int rescans = progress.reconcile(regionFolder, regions, indexer);
+            if (rescans > 0) {
+                log.info("World %s: %d chunks were migrated with other settings and are migrated again"
+                        .formatted(world.getName(), rescans));
+            }
+            Path logFolder = cache.resolve("logs").resolve(world.getName());
+            Files.createDirectories(logFolder);
+            var remaining = regions.stream().filter(e -> !progress.isRegionDone(e.x(), e.z())).toList();
+            regionsTotal = remaining.size();
+            List<Vec2i> queue = new ArrayList<>(remaining);
+            queued.addAll(remaining);
+            // regions whose apply stage finished, handed back to this thread to retry conflicts or persist
+            BlockingQueue<RegionJob> applied = new LinkedBlockingQueue<>();
+            List<RegionJob> inFlight = new ArrayList<>();
+            boolean waiting = false;
+            try {
+                proximity.awaitFirstUpdate();
+                while (!queue.isEmpty() || !inFlight.isEmpty()) {
+                    // while earlier regions are applied on the main thread, scan ahead up to lookAheadRegions
+                    var region = inFlight.size() < lookAheadRegions && applied.isEmpty() ? nextRegion(queue) : null;
+                    if (region == null && inFlight.isEmpty()) {
+                        if (!waiting) {
+                            log.info("World %s: the %d regions left are all near players, waiting for them to leave"
+                                    .formatted(world.getName(), queue.size()));
+                            waiting = true;
+                        }
+                        Thread.sleep(DEFERRED_RETRY_MILLIS);
+                        continue;
+                    }
+                    waiting = false;
+                    if (region != null) {
+                        var job = new RegionJob(region, new LogFile(logFolder, region));
+                        indexRegion(region);
+                        // resume at chunk granularity
+                        var unfinished = RegionUtils.getChunksInRegion(region, getPresentChunks(region))
+                                .filter(e -> !progress.isChunkDone(e.x(), e.z()))
+                                .toList();
+                        // chunks the index has no debris in are done without being loaded
+                        job.pending = new ArrayList<>();
+                        for (Vec2i e : unfinished) {
+                            if (index.isClean(e.x(), e.z())) {
+                                progress.markChunkDone(e.x(), e.z());
+                            } else {
+                                job.pending.add(e);
+                            }
+                        }
+                        job.changeLog.log("indexedCleanChunks=%d", unfinished.size() - job.pending.size());
+                        metrics.chunksSkipped.add(unfinished.size() - job.pending.size());
+                        inFlight.add(job);
+                        launch(job, applied);
+                        continue;
+                    }
+                    var job = applied.take();
+                    if (!job.pending.isEmpty()) {
+                        job.changeLog.log("requeuedChunks=%d", job.pending.size());
+                        if (job.attempt < MAX_ATTEMPTS) {
+                            launch(job, applied);
+                            continue;
+                        }
+                        log.warning("World %s, region %d, %d: %d chunks kept changing, skipped"
+                                .formatted(world.getName(), job.region.x(), job.region.z(), job.pending.size()));
+                        job.changeLog.log("skippedChunks=%d", job.pending.size());
+                    }
+                    inFlight.remove(job);
+                    persist(job);
+                    metrics.regionsMigrated.increment();
+                    regionsMigrated++;
+                    chunksMigrated += job.totalChunks;
+                    log.info(("World %s, region %d, %d migrated, totalChunks=%d, scanMs=%d "
+                            + "(%.1f chunks/s on %d threads), peakLoadedChunks=%d, progress=%d/%d")
+                            .formatted(world.getName(), job.region.x(), job.region.z(), job.totalChunks,
+                                    job.scanMillis, job.totalChunks * 1000.0 / job.scanMillis, checkerThreadCount,
+                                    chunkWindow.getPeak(), regionsMigrated, regionsTotal));
+                }
+            } catch (InterruptedException e) {
+                log.warning("Migration of world %s interrupted".formatted(world.getName()));
+            } finally {
+                for (RegionJob job : inFlight) {
+                    job.changeLog.log("Stopped before the region was finished");
+                    job.changeLog.flushAndClose();
+                }
+            }
+            log.info("Finished migrating world %s, %s".formatted(world.getName(), report()));
+        }
+
+        // the first region in listing order no player is near, regions near players are retried once they moved on
+        // the others aren't ordered by distance to players, that would break the hilbert order border snapshots rely on
+        @Nullable
+        private Vec2i nextRegion(List<Vec2i> queue) {
+            for (int i = 0; i < queue.size(); i++) {
+                var region = queue.get(i);
+                if (!proximity.isRegionNear(region.x(), region.z())) {
+                    queued.remove(region);
+                    return queue.remove(i);
+                }
+            }
+            return null;
+        }
+
+        // load and scan stage on this thread and the pool, then hands the edits to the apply stage
+        private void launch(RegionJob job, BlockingQueue<RegionJob> applied)
+                throws InterruptedException, IOException {
+            long scanStart = System.nanoTime();
+            job.attempt++;
+            // conflicted chunks changed after their snapshot, a retry needs fresh ones
+            boolean reuseSnapshots = job.attempt == 1;
+            // chunks whose load or scan failed are retried like conflicts
+            var scanned = scanChunks(job.pending, reuseSnapshots, job.conflicted);
+            for (ScannedChunk e : scanned) {
+                if (isSnapshotNeeded(e.pos())) {
+                    borderSnapshots.put(e.pos(), new BorderSnapshot(e.snapshot(), System.nanoTime()));
+                }
+            }
+            var computed = computeEdits(scanned, reuseSnapshots, job.conflicted);
+            computed.forEach(this::forgetSnapshots);
+            // this region was the last one waiting for some of them
+            borderSnapshots.keySet().removeIf(e -> !isSnapshotNeeded(e));
+            if (job.totalChunks < 0) {
+                job.totalChunks = scanned.size();
+                job.scanMillis = Math.max(1, (System.nanoTime() - scanStart) / 1_000_000);
+                job.changeLog.log("totalChunks=%d, chunksWithDebris=%d", job.totalChunks, computed.size());
+            }
+            job.pending = List.of();
+            var withEdits = computed.stream().filter(e -> !e.edits().isEmpty()).toList();
+            // chunks without edits are done as soon as they were scanned
+            Set<Vec2i> needApply = withEdits.stream().map(ComputedChunk::pos).collect(Collectors.toSet());
+            Set<Vec2i> failed = Set.copyOf(job.conflicted);
+            if (!failed.isEmpty()) {
+                job.changeLog.log("failedChunks=%d", failed.size());
+            }
+            for (ScannedChunk e : scanned) {
+                if (!needApply.contains(e.pos()) && !failed.contains(e.pos())) {
+                    progress.markChunkDone(e.pos().x(), e.pos().z());
+                }
+            }
+            if (withEdits.isEmpty()) {
+                job.pending = List.copyOf(job.conflicted);
+                job.conflicted.clear();
+                applied.add(job);
+                return;
+            }
+            AtomicInteger remaining = new AtomicInteger(withEdits.size());
+            for (ComputedChunk e : withEdits) {
+                // load ahead of the apply job, so it only has to write
+                chunkWindow.acquire();
+                chunkSource.load(world, e.pos().x(), e.pos().z()).whenComplete((chunk, failure) -> mainThread.execute(() -> {
+                    // the window and the countdown must move on whatever happens, or the world thread waits forever
                     try {
-                        // hope that the buffer is big enough or this may stall
-                        changeLog.logChunkPushed(e.c(), debrisMarked);
-                        changeLog.logChunkHidden(e.c(), hidden);
-                    } catch (IOException ex) {
-                        throw new RuntimeException(ex);
+                        if (chunk != null) {
+                            try {
+                                applyEdits(job, e);
+                            } finally {
+                                release(chunk);
+                            }
+                        } else {
+                            job.conflicted.add(e.pos());
+                        }
+                    } catch (RuntimeException ex) {
+                        // not recorded as done, the chunk is retried like a conflict
+                        job.conflicted.add(e.pos());
+                        log.log(Level.WARNING, "Failed to apply the edits of chunk %d, %d of world %s"
+                                .formatted(e.pos().x(), e.pos().z(), world.getName()), ex);
+                    } finally {
+                        chunkWindow.release();
+                        if (remaining.decrementAndGet() == 0) {
+                            job.pending = List.copyOf(job.conflicted);
+                            job.conflicted.clear();
+                            applied.add(job);
+                        }
                     }
-                    chunk.unload();
-                    latch.countDown();
-                });
-            }, (long) key * ticksPerBatch));
+                }));
+            }
+        }
+
+        // persist stage, a region is only recorded once all of its chunks were applied or given up on
+        // chunks that were given up on stay unmarked, so do chunks missing from the region file that are loaded,
+        // those may only exist in memory so far, a later run picks both up again
+        private void persist(RegionJob job) throws IOException, InterruptedException {
+            var unfinished = new BitSet(32 * 32);
+            job.pending.forEach(e -> unfinished.set((e.z() & 31) * 32 + (e.x() & 31)));
+            var present = getPresentChunks(job.region);
+            var loaded = CompletableFuture.supplyAsync(() -> {
+                var chunks = new BitSet(32 * 32);
+                for (int i = present.nextClearBit(0); i < 32 * 32; i = present.nextClearBit(i + 1)) {
+                    if (world.isChunkLoaded(job.region.x() * 32 + i % 32, job.region.z() * 32 + i / 32)) {
+                        chunks.set(i);
+                    }
+                }
+                return chunks;
+            }, mainThread);
             try {
-                latch.await();
-            } catch (InterruptedException e) {
-                log.warning("WorldMigrator interrupted, stopping migration");
-                pool.shutdownNow();
-                break;
-            }
-            regionsMigratedThisRun++;
-            regionsMigrated.add(region);
-            regionsMigrated.writeAndFlush();
-            changeLog.log("Marked region as finished");
-            changeLog.flushAndClose();
-            log.info("Region %d, %d migrated, totalChunks=%d, progress=%d/%d"
-                    .formatted(region.x(), region.y(), chunks.size(), regionsMigratedThisRun, regions.size()));
-        }
-        regionsMigrated.writeAndFlush();
-        regionsMigrated.close();
-        log.info("Finished migrating world %s".formatted(world.getName()));
+                unfinished.or(loaded.get());
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            progress.markRegionDone(job.region.x(), job.region.z(), unfinished);
+            progress.force();
+            job.changeLog.log("pushed=%d, hidden=%d", job.pushed.get(), job.hidden.get());
+            job.changeLog.log("worldLookupsSaved=%d, requeued=%d", job.lookupsSaved.get(), job.conflicts.get());
+            job.changeLog.log("Marked region as finished");
+            job.changeLog.flushAndClose();
+        }
+
+        // requests chunks from the chunk source and fans the snapshots and scans out to the pool,
+        // at most scanWindow in flight, every chunk is unloaded again right after its snapshot was taken
+        // border chunks a neighbouring region already took a snapshot of are scanned from that one if allowed
+        // chunks that failed to load or scan are added to failed instead
+        private List<ScannedChunk> scanChunks(List<Vec2i> positions, boolean reuseSnapshots, List<Vec2i> failed)
+                throws InterruptedException {
+            Semaphore inFlight = new Semaphore(scanWindow);
+            List<CompletableFuture<ScannedChunk>> futures = new ArrayList<>();
+            for (Vec2i pos : positions) {
+                var cached = reuseSnapshots ? getBorderSnapshot(pos) : null;
+                CompletableFuture<ScannedChunk> future;
+                if (cached != null) {
+                    future = CompletableFuture.supplyAsync(() -> scan(pos, cached), pool);
+                } else {
+                    inFlight.acquire();
+                    chunkWindow.acquire();
+                    future = loadForSnapshot(pos).handleAsync((chunk, ex) -> {
+                        // failed to load, or present in the region file but still a proto chunk
+                        if (chunk == null) {
+                            chunkWindow.release();
+                            if (ex != null) {
+                                throw new CompletionException(ex);
+                            }
+                            return null;
+                        }
+                        try {
+                            return scan(pos, chunk.getChunkSnapshot(false, false, false));
+                        } finally {
+                            unload(chunk);
+                        }
+                    }, pool).whenComplete((result, ex) -> inFlight.release());
+                }
+                futures.add(future.exceptionally(ex -> {
+                    log.log(Level.FINE, "Failed to scan chunk %d, %d of world %s"
+                            .formatted(pos.x(), pos.z(), world.getName()), ex);
+                    failed.add(pos);
+                    return null;
+                }));
+            }
+            // the joins below can't be interrupted, loads dropped by a stopped executor never complete
+            inFlight.acquire(scanWindow);
+            return futures.stream().map(CompletableFuture::join).filter(Objects::nonNull).toList();
+        }
+
+        private ScannedChunk scan(Vec2i pos, ChunkSnapshot snapshot) {
+            long start = System.nanoTime();
+            var debris = processor.scanDebris(IRegionAccess.from(snapshot, world.getMinHeight()),
+                    world.getMinHeight(), hideDebrisBelow);
+            metrics.scanTime.record(System.nanoTime() - start);
+            metrics.chunksScanned.increment();
+            return new ScannedChunk(pos, snapshot, debris);
+        }
+
+        // loads for the apply stage aren't counted, those chunks are loaded a second time on purpose
+        private CompletableFuture<Chunk> loadForSnapshot(Vec2i pos) {
+            var loaded = loadedChunks.computeIfAbsent(new Vec2i(pos.x() >> 5, pos.z() >> 5), k -> new BitSet());
+            int bit = (pos.z() & 31) * 32 + (pos.x() & 31);
+            chunkLoads++;
+            metrics.chunkLoads.increment();
+            if (loaded.get(bit)) {
+                redundantLoads++;
+                metrics.redundantChunkLoads.increment();
+            }
+            loaded.set(bit);
+            return chunkSource.load(world, pos.x(), pos.z());
+        }
+
+        @Nullable
+        private ChunkSnapshot getBorderSnapshot(Vec2i pos) {
+            var cached = borderSnapshots.get(pos);
+            if (cached == null) {
+                return null;
+            }
+            if (System.nanoTime() - cached.takenNanos() > BORDER_SNAPSHOT_MAX_AGE_NANOS) {
+                borderSnapshots.remove(pos);
+                return null;
+            }
+            metrics.borderSnapshotHits.increment();
+            return cached.snapshot();
+        }
+
+        // a snapshot is only reused by a region still to be launched, the chunk's own or one across a border it lies on
+        private boolean isSnapshotNeeded(Vec2i pos) {
+            int regionX = pos.x() >> 5;
+            int regionZ = pos.z() >> 5;
+            int x = pos.x() & 31;
+            int z = pos.z() & 31;
+            return queued.contains(new Vec2i(regionX, regionZ))
+                    || x == 0 && queued.contains(new Vec2i(regionX - 1, regionZ))
+                    || x == 31 && queued.contains(new Vec2i(regionX + 1, regionZ))
+                    || z == 0 && queued.contains(new Vec2i(regionX, regionZ - 1))
+                    || z == 31 && queued.contains(new Vec2i(regionX, regionZ + 1));
+        }
+
+        // the apply stage is about to write to these chunks, so their snapshots must not be reused
+        private void forgetSnapshots(ComputedChunk e) {
+            var edits = e.edits();
+            for (int i = 0; i < edits.size(); i++) {
+                borderSnapshots.remove(new Vec2i(e.pos().x() + (edits.x(i) >> 4), e.pos().z() + (edits.z(i) >> 4)));
+            }
+        }
+
+        private void indexRegion(Vec2i region) throws IOException {
+            if (index.isIndexed(region.x(), region.z())) {
+                return;
+            }
+            long start = System.nanoTime();
+            var clean = indexer.findCleanChunks(regionFolder, region);
+            index.putClean(region.x(), region.z(), clean);
+            log.fine("Region %d, %d indexed in %dms, cleanChunks=%d"
+                    .formatted(region.x(), region.z(), (System.nanoTime() - start) / 1_000_000, clean.cardinality()));
+        }
+
+        // chunks that don't exist in the region files are never requested from the server
+        private BitSet getPresentChunks(Vec2i region) throws IOException {
+            var present = presentChunks.get(region);
+            if (present == null) {
+                present = RegionUtils.getPresentChunks(RegionUtils.getRegionFile(regionFolder, region));
+                presentChunks.put(region, present);
+            }
+            return present;
+        }
+
+        private void unload(Chunk chunk) {
+            mainThread.execute(() -> {
+                release(chunk);
+                chunkWindow.release();
+            });
+        }
+
+        // main thread, chunks that were loaded before the migrator asked for them or that a player came near
+        // are left to the server
+        private void release(Chunk chunk) {
+            if (chunkSource.release(chunk) && !proximity.isChunkNear(chunk.getX(), chunk.getZ())) {
+                chunk.unload();
+            }
+        }
+
+        // computes pushDown and hideExposed on the pool against snapshots of each chunk and the neighbours it touches
+        // chunks a neighbour failed to load for, or whose compute failed, are added to failed instead
+        private List<ComputedChunk> computeEdits(List<ScannedChunk> scanned, boolean reuseSnapshots,
+                                                 List<Vec2i> failed) throws InterruptedException, IOException {
+            Map<Vec2i, ChunkSnapshot> snapshots = new HashMap<>();
+            scanned.forEach(e -> snapshots.put(e.pos(), e.snapshot()));
+            List<CompletableFuture<ComputedChunk>> futures = new ArrayList<>();
+            for (ScannedChunk e : scanned) {
+                if (e.debris().isEmpty()) {
+                    continue;
+                }
+                ChunkSnapshot[] neighbourhood = new ChunkSnapshot[9];
+                neighbourhood[4] = e.snapshot();
+                var debris = e.debris();
+                // hideExposed only reaches across the chunk border from debris in the edge columns
+                try {
+                    for (int i = 0; i < debris.size(); i++) {
+                        int dx = debris.x(i) == 0 ? -1 : debris.x(i) == 15 ? 1 : 0;
+                        int dz = debris.z(i) == 0 ? -1 : debris.z(i) == 15 ? 1 : 0;
+                        if (dx != 0) {
+                            neighbourhood[(dx + 1) * 3 + 1] = getSnapshot(snapshots, e.pos(), dx, 0, reuseSnapshots);
+                        }
+                        if (dz != 0) {
+                            neighbourhood[3 + dz + 1] = getSnapshot(snapshots, e.pos(), 0, dz, reuseSnapshots);
+                        }
+                    }
+                } catch (ExecutionException ex) {
+                    log.log(Level.FINE, "Failed to load a neighbour of chunk %d, %d of world %s"
+                            .formatted(e.pos().x(), e.pos().z(), world.getName()), ex.getCause());
+                    failed.add(e.pos());
+                    continue;
+                }
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    var edits = new ChunkEdits();
+                    var access = IRegionAccess.from(neighbourhood, edits);
+                    var allDebris = processor.pushDown(access, debris);
+                    var hidden = processor.hideExposed(access, allDebris);
+                    return new ComputedChunk(e.pos(), debris, hidden, edits);
+                }, pool).exceptionally(ex -> {
+                    log.log(Level.WARNING, "Failed to compute the edits of chunk %d, %d of world %s"
+                            .formatted(e.pos().x(), e.pos().z(), world.getName()), ex);
+                    failed.add(e.pos());
+                    return null;
+                }));
+            }
+            return futures.stream().map(CompletableFuture::join).filter(Objects::nonNull).toList();
+        }
+
+        @Nullable
+        private ChunkSnapshot getSnapshot(Map<Vec2i, ChunkSnapshot> snapshots, Vec2i center, int dx, int dz,
+                                          boolean reuseSnapshots)
+                throws InterruptedException, IOException, ExecutionException {
+            var pos = new Vec2i(center.x() + dx, center.z() + dz);
+            if (snapshots.containsKey(pos)) {
+                return snapshots.get(pos);
+            }
+            var snapshot = reuseSnapshots ? getBorderSnapshot(pos) : null;
+            var region = new Vec2i(pos.x() >> 5, pos.z() >> 5);
+            if (snapshot == null && getPresentChunks(region).get((pos.z() & 31) * 32 + (pos.x() & 31))) {
+                chunkWindow.acquire();
+                Chunk chunk;
+                try {
+                    chunk = loadForSnapshot(pos).get();
+                } catch (ExecutionException | InterruptedException e) {
+                    chunkWindow.release();
+                    throw e;
+                }
+                if (chunk != null) {
+                    snapshot = chunk.getChunkSnapshot(false, false, false);
+                    unload(chunk);
+                    if (isSnapshotNeeded(pos)) {
+                        borderSnapshots.put(pos, new BorderSnapshot(snapshot, System.nanoTime()));
+                    }
+                } else {
+                    chunkWindow.release();
+                }
+            }
+            snapshots.put(pos, snapshot);
+            return snapshot;
+        }
+
+        // apply stage on the main thread, chunks that changed since their snapshot are collected for another attempt
+        private void applyEdits(RegionJob job, ComputedChunk e) {
+            long start = System.nanoTime();
+            var access = IRegionAccess.from(world, e.pos().x(), e.pos().z());
+            if (e.edits().apply(access)) {
+                try {
+                    progress.markChunkDone(e.pos().x(), e.pos().z());
+                    changes.append(e.pos().x(), e.pos().z(), e.edits());
+                    job.pushed.addAndGet(e.debris().countFlagged());
+                    job.hidden.addAndGet(e.hidden().size());
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+                metrics.chunksApplied.increment();
+                metrics.debrisPushed.add(e.debris().countFlagged());
+                metrics.debrisHidden.add(e.hidden().size());
+                metrics.blocksWritten.add(access.getBlocksWritten());
+                metrics.sectionsWritten.add(access.getSectionsWritten());
+                metrics.writesDropped.add(e.edits().size() - e.edits().countWrites());
+            } else {
+                job.conflicts.incrementAndGet();
+                job.conflicted.add(e.pos());
+                metrics.conflicts.increment();
+            }
+            job.lookupsSaved.addAndGet(access.getWorldLookupsSaved());
+            metrics.applyTime.record(System.nanoTime() - start);
+        }
     }
 
     public void close() {
@@ -0,0 +1,211 @@
+package xyz.skyfalls.hidedebris.anvil;
+
+import org.bukkit.Material;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// block access to a decoded 1.18+ chunk, sections are decoded on first access and re-encoded by encode()
+public class AnvilChunk {
+    private static final String STATUS_FULL = "minecraft:full";
+    private final Map<String, Object> nbt;
+    private final int minSection;
+    private final Section[] sections;
+    private boolean dirty;
+
+    public AnvilChunk(Map<String, Object> nbt) {
+        this.nbt = nbt;
+        int minSection = Integer.MAX_VALUE;
+        int maxSection = Integer.MIN_VALUE;
+        for (Object e : sectionList().values()) {
+            int y = ((Number) compound(e).get("Y")).intValue();
+            minSection = Math.min(minSection, y);
+            maxSection = Math.max(maxSection, y);
+        }
+        if (nbt.get("yPos") instanceof Integer yPos) {
+            // the lowest section in the list only holds light data
+            minSection = yPos;
+        }
+        this.minSection = minSection;
+        this.sections = new Section[Math.max(0, maxSection - minSection + 1)];
+    }
+
+    public boolean isFullyGenerated() {
+        var status = nbt.get("Status");
+        return STATUS_FULL.equals(status) || "full".equals(status);
+    }
+
+    // the position stored in the chunk itself, a region file read while the server writes it can pair the
+    // location table with sectors that were reused for another chunk
+    public boolean isAt(int chunkX, int chunkZ) {
+        return nbt.get("xPos") instanceof Integer x && x == chunkX && nbt.get("zPos") instanceof Integer z && z == chunkZ;
+    }
+
+    public int getMinY() {
+        return minSection * 16;
+    }
+
+    public int getMaxY() {
+        return (minSection + sections.length) * 16 - 1;
+    }
+
+    @Nullable
+    public Material getBlockType(int x, int y, int z) {
+        var section = section(y >> 4);
+        if (section == null) {
+            return Material.AIR;
+        }
+        return section.palette.get(section.indices()[blockIndex(x, y, z)]);
+    }
+
+    // palette check only, the block data of the section is not decoded
+    public boolean sectionContains(int sectionY, Material material) {
+        var section = section(sectionY);
+        return section != null && section.palette.contains(material);
+    }
+
+    public void setBlockType(int x, int y, int z, Material material) {
+        var section = section(y >> 4);
+        if (section == null) {
+            return;
+        }
+        int index = section.palette.indexOf(material);
+        if (index < 0) {
+            index = section.palette.size();
+            section.palette.add(material);
+            Map<String, Object> state = new LinkedHashMap<>();
+            state.put("Name", material.getKey().toString());
+            section.states.add(state);
+        }
+        section.indices()[blockIndex(x, y, z)] = (short) index;
+        section.dirty = true;
+        dirty = true;
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    // writes modified sections back into the chunk NBT and returns it
+    public Map<String, Object> encode() {
+        for (Section section : sections) {
+            if (section != null && section.dirty) {
+                section.encode();
+            }
+        }
+        // let the server recompute light for the blocks that were swapped
+        nbt.put("isLightOn", (byte) 0);
+        dirty = false;
+        return nbt;
+    }
+
+    private static int blockIndex(int x, int y, int z) {
+        return ((y & 15) * 16 + (z & 15)) * 16 + (x & 15);
+    }
+
+    @Nullable
+    private Section section(int sectionY) {
+        int i = sectionY - minSection;
+        if (i < 0 || i >= sections.length) {
+            return null;
+        }
+        if (sections[i] == null) {
+            for (Object e : sectionList().values()) {
+                var tag = compound(e);
+                if (((Number) tag.get("Y")).intValue() == sectionY && tag.get("block_states") != null) {
+                    sections[i] = new Section(compound(tag.get("block_states")));
+                    break;
+                }
+            }
+        }
+        return sections[i];
+    }
+
+    private NbtList sectionList() {
+        var list = nbt.get("sections");
+        return list instanceof NbtList l ? l : new NbtList(NbtIO.TAG_COMPOUND, List.of());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> compound(Object tag) {
+        return (Map<String, Object>) tag;
+    }
+
+    private static class Section {
+        private final Map<String, Object> blockStates;
+        // palette entries in NBT form, kept to preserve block properties on re-encode
+        private final List<Object> states;
+        private final List<Material> palette;
+        private short[] indices;
+        private boolean dirty;
+
+        private Section(Map<String, Object> blockStates) {
+            this.blockStates = blockStates;
+            this.states = new ArrayList<>(((NbtList) blockStates.get("palette")).values());
+            this.palette = new ArrayList<>(states.size());
+            for (Object e : states) {
+                palette.add(Material.matchMaterial((String) compound(e).get("Name")));
+            }
+        }
+
+        private short[] indices() {
+            if (indices != null) {
+                return indices;
+            }
+            indices = new short[4096];
+            if (blockStates.get("data") instanceof long[] data) {
+                int bits = bitsFor(states.size());
+                int perLong = 64 / bits;
+                long mask = (1L << bits) - 1;
+                for (int i = 0; i < indices.length; i++) {
+                    indices[i] = (short) (data[i / perLong] >>> (i % perLong) * bits & mask);
+                }
+            }
+            return indices;
+        }
+
+        private void encode() {
+            // drop palette entries that are no longer referenced
+            int[] remap = new int[states.size()];
+            for (short e : indices()) {
+                remap[e] = 1;
+            }
+            List<Object> usedStates = new ArrayList<>();
+            List<Material> usedPalette = new ArrayList<>();
+            for (int i = 0; i < remap.length; i++) {
+                if (remap[i] != 0) {
+                    remap[i] = usedStates.size();
+                    usedStates.add(states.get(i));
+                    usedPalette.add(palette.get(i));
+                }
+            }
+            states.clear();
+            states.addAll(usedStates);
+            palette.clear();
+            palette.addAll(usedPalette);
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = (short) remap[indices[i]];
+            }
+            dirty = false;
+            blockStates.put("palette", new NbtList(NbtIO.TAG_COMPOUND, new ArrayList<>(states)));
+            if (states.size() == 1) {
+                blockStates.remove("data");
+                return;
+            }
+            int bits = bitsFor(states.size());
+            int perLong = 64 / bits;
+            long[] data = new long[(indices.length + perLong - 1) / perLong];
+            for (int i = 0; i < indices.length; i++) {
+                data[i / perLong] |= (long) indices[i] << (i % perLong) * bits;
+            }
+            blockStates.put("data", data);
+        }
+
+        private static int bitsFor(int paletteSize) {
+            return Math.max(4, 32 - Integer.numberOfLeadingZeros(paletteSize - 1));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package xyz.skyfalls.hidedebris.anvil;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.BitSet;
+
+// a region file whose chunks are decoded on demand and written back on save
+public class AnvilRegion {
+    private final RegionFile file;
+    private final AnvilChunk[] chunks = new AnvilChunk[RegionFile.CHUNKS];
+    private final boolean[] decoded = new boolean[RegionFile.CHUNKS];
+
+    private AnvilRegion(RegionFile file) {
+        this.file = file;
+    }
+
+    public static AnvilRegion read(Path path) throws IOException {
+        return new AnvilRegion(RegionFile.read(path));
+    }
+
+    public boolean hasChunk(int localX, int localZ) {
+        return file.hasChunk(RegionFile.index(localX, localZ));
+    }
+
+    // returns null for chunks outside this region, missing or not fully generated
+    @Nullable
+    public AnvilChunk getChunk(int localX, int localZ) {
+        if (localX < 0 || localX >= 32 || localZ < 0 || localZ >= 32) {
+            return null;
+        }
+        int index = RegionFile.index(localX, localZ);
+        if (!decoded[index]) {
+            decoded[index] = true;
+            try {
+                var nbt = file.readChunk(index);
+                if (nbt != null) {
+                    var chunk = new AnvilChunk(nbt);
+                    chunks[index] = chunk.isFullyGenerated() ? chunk : null;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to decode chunk %d, %d".formatted(localX, localZ), e);
+            }
+        }
+        return chunks[index];
+    }
+
+    // returns the indices of modified chunks that no longer fit into the region file, those are left as they were
+    public BitSet save() throws IOException {
+        var dropped = new BitSet(RegionFile.CHUNKS);
+        for (int i = 0; i < chunks.length; i++) {
+            if (chunks[i] != null && chunks[i].isDirty() && !file.writeChunk(i, chunks[i].encode())) {
+                dropped.set(i);
+            }
+        }
+        file.save();
+        return dropped;
+    }
+}
@@ -0,0 +1,182 @@
+package xyz.skyfalls.hidedebris.anvil;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// minimal NBT codec, compounds are LinkedHashMap<String, Object> and lists are NbtList
+public class NbtIO {
+    public static final byte TAG_END = 0;
+    public static final byte TAG_BYTE = 1;
+    public static final byte TAG_SHORT = 2;
+    public static final byte TAG_INT = 3;
+    public static final byte TAG_LONG = 4;
+    public static final byte TAG_FLOAT = 5;
+    public static final byte TAG_DOUBLE = 6;
+    public static final byte TAG_BYTE_ARRAY = 7;
+    public static final byte TAG_STRING = 8;
+    public static final byte TAG_LIST = 9;
+    public static final byte TAG_COMPOUND = 10;
+    public static final byte TAG_INT_ARRAY = 11;
+    public static final byte TAG_LONG_ARRAY = 12;
+
+    public static Map<String, Object> readRoot(DataInput in) throws IOException {
+        byte type = in.readByte();
+        if (type != TAG_COMPOUND) {
+            throw new IOException("Root tag is not a compound but " + type);
+        }
+        in.readUTF();
+        return readCompound(in);
+    }
+
+    public static void writeRoot(DataOutput out, Map<String, Object> root) throws IOException {
+        out.writeByte(TAG_COMPOUND);
+        out.writeUTF("");
+        writeCompound(out, root);
+    }
+
+    private static Map<String, Object> readCompound(DataInput in) throws IOException {
+        Map<String, Object> compound = new LinkedHashMap<>();
+        byte type;
+        while ((type = in.readByte()) != TAG_END) {
+            String name = in.readUTF();
+            compound.put(name, readPayload(in, type));
+        }
+        return compound;
+    }
+
+    private static Object readPayload(DataInput in, byte type) throws IOException {
+        switch (type) {
+            case TAG_BYTE:
+                return in.readByte();
+            case TAG_SHORT:
+                return in.readShort();
+            case TAG_INT:
+                return in.readInt();
+            case TAG_LONG:
+                return in.readLong();
+            case TAG_FLOAT:
+                return in.readFloat();
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_BYTE_ARRAY: {
+                byte[] array = new byte[in.readInt()];
+                in.readFully(array);
+                return array;
+            }
+            case TAG_STRING:
+                return in.readUTF();
+            case TAG_LIST: {
+                byte elementType = in.readByte();
+                int length = in.readInt();
+                List<Object> values = new ArrayList<>(Math.max(length, 0));
+                for (int i = 0; i < length; i++) {
+                    values.add(readPayload(in, elementType));
+                }
+                return new NbtList(elementType, values);
+            }
+            case TAG_COMPOUND:
+                return readCompound(in);
+            case TAG_INT_ARRAY: {
+                int[] array = new int[in.readInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readInt();
+                }
+                return array;
+            }
+            case TAG_LONG_ARRAY: {
+                long[] array = new long[in.readInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readLong();
+                }
+                return array;
+            }
+            default:
+                throw new IOException("Unknown tag type " + type);
+        }
+    }
+
+    private static void writeCompound(DataOutput out, Map<String, Object> compound) throws IOException {
+        for (Map.Entry<String, Object> e : compound.entrySet()) {
+            out.writeByte(typeOf(e.getValue()));
+            out.writeUTF(e.getKey());
+            writePayload(out, e.getValue());
+        }
+        out.writeByte(TAG_END);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writePayload(DataOutput out, Object value) throws IOException {
+        if (value instanceof Byte b) {
+            out.writeByte(b);
+        } else if (value instanceof Short s) {
+            out.writeShort(s);
+        } else if (value instanceof Integer i) {
+            out.writeInt(i);
+        } else if (value instanceof Long l) {
+            out.writeLong(l);
+        } else if (value instanceof Float f) {
+            out.writeFloat(f);
+        } else if (value instanceof Double d) {
+            out.writeDouble(d);
+        } else if (value instanceof byte[] array) {
+            out.writeInt(array.length);
+            out.write(array);
+        } else if (value instanceof String s) {
+            out.writeUTF(s);
+        } else if (value instanceof NbtList list) {
+            out.writeByte(list.elementType());
+            out.writeInt(list.values().size());
+            for (Object e : list.values()) {
+                writePayload(out, e);
+            }
+        } else if (value instanceof Map<?, ?> map) {
+            writeCompound(out, (Map<String, Object>) map);
+        } else if (value instanceof int[] array) {
+            out.writeInt(array.length);
+            for (int e : array) {
+                out.writeInt(e);
+            }
+        } else if (value instanceof long[] array) {
+            out.writeInt(array.length);
+            for (long e : array) {
+                out.writeLong(e);
+            }
+        } else {
+            throw new IllegalArgumentException("Not a NBT value: " + value);
+        }
+    }
+
+    private static byte typeOf(Object value) {
+        if (value instanceof Byte) {
+            return TAG_BYTE;
+        } else if (value instanceof Short) {
+            return TAG_SHORT;
+        } else if (value instanceof Integer) {
+            return TAG_INT;
+        } else if (value instanceof Long) {
+            return TAG_LONG;
+        } else if (value instanceof Float) {
+            return TAG_FLOAT;
+        } else if (value instanceof Double) {
+            return TAG_DOUBLE;
+        } else if (value instanceof byte[]) {
+            return TAG_BYTE_ARRAY;
+        } else if (value instanceof String) {
+            return TAG_STRING;
+        } else if (value instanceof NbtList) {
+            return TAG_LIST;
+        } else if (value instanceof Map) {
+            return TAG_COMPOUND;
+        } else if (value instanceof int[]) {
+            return TAG_INT_ARRAY;
+        } else if (value instanceof long[]) {
+            return TAG_LONG_ARRAY;
+        }
+        throw new IllegalArgumentException("Not a NBT value: " + value);
+    }
+}
@@ -0,0 +1,7 @@
+package xyz.skyfalls.hidedebris.anvil;
+
+import java.util.List;
+
+// list tags keep their element type so empty lists round-trip unchanged
+public record NbtList(byte elementType, List<Object> values) {
+}
@@ -0,0 +1,139 @@
+package xyz.skyfalls.hidedebris.anvil;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+// in-memory copy of an anvil region file, chunks are addressed by index = localZ * 32 + localX
+public class RegionFile {
+    public static final int SECTOR_BYTES = 4096;
+    public static final int CHUNKS = 32 * 32;
+    private static final int COMPRESSION_GZIP = 1;
+    private static final int COMPRESSION_ZLIB = 2;
+    private static final int COMPRESSION_NONE = 3;
+    private static final int MAX_SECTORS = 255;
+
+    private final Path path;
+    private final int[] timestamps = new int[CHUNKS];
+    // raw payload of every chunk: compression type followed by the compressed data
+    private final byte[][] payloads = new byte[CHUNKS][];
+    private boolean dirty;
+
+    private RegionFile(Path path) {
+        this.path = path;
+    }
+
+    public static RegionFile read(Path path) throws IOException {
+        var region = new RegionFile(path);
+        var buf = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (buf.capacity() < SECTOR_BYTES * 2) {
+            // an empty or truncated header, minecraft treats it as a region without chunks
+            return region;
+        }
+        for (int i = 0; i < CHUNKS; i++) {
+            int location = buf.getInt(i * 4);
+            region.timestamps[i] = buf.getInt(SECTOR_BYTES + i * 4);
+            int offset = (location >>> 8) * SECTOR_BYTES;
+            if (location == 0 || offset + 5 > buf.capacity()) {
+                continue;
+            }
+            int length = buf.getInt(offset);
+            if (length < 1 || offset + 4 + length > buf.capacity()) {
+                continue;
+            }
+            byte[] payload = new byte[length];
+            buf.get(offset + 4, payload);
+            region.payloads[i] = payload;
+        }
+        return region;
+    }
+
+    public static int index(int localX, int localZ) {
+        return (localZ & 31) * 32 + (localX & 31);
+    }
+
+    public boolean hasChunk(int index) {
+        return payloads[index] != null;
+    }
+
+    // returns null for chunks that are missing, stored in an external .mcc file or use an unknown compression
+    public Map<String, Object> readChunk(int index) throws IOException {
+        byte[] payload = payloads[index];
+        if (payload == null) {
+            return null;
+        }
+        InputStream raw = new ByteArrayInputStream(payload, 1, payload.length - 1);
+        InputStream in = switch (payload[0]) {
+            case COMPRESSION_GZIP -> new GZIPInputStream(raw);
+            case COMPRESSION_ZLIB -> new InflaterInputStream(raw);
+            case COMPRESSION_NONE -> raw;
+            default -> null;
+        };
+        if (in == null) {
+            return null;
+        }
+        try (var data = new DataInputStream(new BufferedInputStream(in))) {
+            return NbtIO.readRoot(data);
+        }
+    }
+
+    // returns false and keeps the chunk unmodified if it would need an external .mcc file
+    public boolean writeChunk(int index, Map<String, Object> chunk) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        bytes.write(COMPRESSION_ZLIB);
+        try (var out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(bytes)))) {
+            NbtIO.writeRoot(out, chunk);
+        }
+        if (sectorsFor(bytes.size()) > MAX_SECTORS) {
+            return false;
+        }
+        payloads[index] = bytes.toByteArray();
+        timestamps[index] = (int) (System.currentTimeMillis() / 1000);
+        dirty = true;
+        return true;
+    }
+
+    // rewrites the whole file next to the original and atomically replaces it
+    public void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+            var header = ByteBuffer.allocate(SECTOR_BYTES * 2);
+            int sector = 2;
+            for (int i = 0; i < CHUNKS; i++) {
+                header.putInt(SECTOR_BYTES + i * 4, timestamps[i]);
+                if (payloads[i] == null) {
+                    continue;
+                }
+                int sectors = sectorsFor(payloads[i].length);
+                header.putInt(i * 4, sector << 8 | sectors);
+                sector += sectors;
+            }
+            out.write(header.array());
+            var length = ByteBuffer.allocate(4);
+            for (int i = 0; i < CHUNKS; i++) {
+                if (payloads[i] == null) {
+                    continue;
+                }
+                length.putInt(0, payloads[i].length);
+                out.write(length.array());
+                out.write(payloads[i]);
+                out.write(new byte[sectorsFor(payloads[i].length) * SECTOR_BYTES - 4 - payloads[i].length]);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    private static int sectorsFor(int payloadLength) {
+        return (payloadLength + 4 + SECTOR_BYTES - 1) / SECTOR_BYTES;
+    }
+}
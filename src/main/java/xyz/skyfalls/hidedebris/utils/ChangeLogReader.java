@@ -0,0 +1,120 @@
+package xyz.skyfalls.hidedebris.utils;
+
+import org.bukkit.Material;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.InflaterInputStream;
+
+// reads a ChangeLogWriter log frame by frame from the newest to the oldest
+public class ChangeLogReader implements AutoCloseable {
+    private final FileChannel channel;
+    private long position;
+
+    public ChangeLogReader(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.position = validLength(channel);
+    }
+
+    // length of the log up to the end of the last complete frame, 0 for an empty file
+    static long validLength(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return 0;
+        }
+        var header = read(channel, 0, ChangeLogWriter.HEADER_BYTES);
+        if (header.getInt(0) != ChangeLogWriter.MAGIC || header.getInt(4) != ChangeLogWriter.VERSION) {
+            throw new IOException("Not a HideDebris change log or an unsupported version");
+        }
+        long end = ChangeLogWriter.HEADER_BYTES;
+        while (end + 5 <= size) {
+            long frameEnd = end + 1 + 4 + read(channel, end + 1, 4).getInt(0) + 4;
+            if (frameEnd > size) {
+                break;
+            }
+            end = frameEnd;
+        }
+        return end;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        var buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buf.flip();
+    }
+
+    // null once the start of the log was reached
+    @Nullable
+    public Frame previous() throws IOException {
+        if (position <= ChangeLogWriter.HEADER_BYTES) {
+            return null;
+        }
+        int frameLength = read(channel, position - 4, 4).getInt(0);
+        long start = position - frameLength;
+        var frame = read(channel, start, frameLength - 4);
+        position = start;
+        byte flags = frame.get(0);
+        InputStream bytes = new ByteArrayInputStream(frame.array(), 5, frame.getInt(1));
+        try (var in = new DataInputStream((flags & ChangeLogWriter.FLAG_DEFLATED) != 0
+                ? new InflaterInputStream(bytes) : bytes)) {
+            var materials = new Material[in.readUnsignedShort()];
+            for (int i = 0; i < materials.length; i++) {
+                materials[i] = Material.matchMaterial(in.readUTF());
+            }
+            int size = in.readInt();
+            var records = new byte[size * 13];
+            in.readFully(records);
+            return new Frame(materials, ByteBuffer.wrap(records), size);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // materials are null for names this server version doesn't know
+    public record Frame(Material[] materials, ByteBuffer records, int size) {
+        private long position(int i) {
+            return records.getLong(i * 13);
+        }
+
+        public int x(int i) {
+            return (int) (position(i) >> 38);
+        }
+
+        public int y(int i) {
+            return (int) (position(i) << 52 >> 52);
+        }
+
+        public int z(int i) {
+            return (int) (position(i) << 26 >> 38);
+        }
+
+        public byte op(int i) {
+            return records.get(i * 13 + 8);
+        }
+
+        @Nullable
+        public Material oldType(int i) {
+            return materials[records.getShort(i * 13 + 9) & 0xffff];
+        }
+
+        @Nullable
+        public Material newType(int i) {
+            return materials[records.getShort(i * 13 + 11) & 0xffff];
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package xyz.skyfalls.hidedebris.utils;
+
+import org.bukkit.Material;
+import xyz.skyfalls.hidedebris.ChunkEdits;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.DeflaterOutputStream;
+
+// binary change log of a world, callers only enqueue and a dedicated thread encodes and writes
+// file: magic, version, then frames of flags, payload length, payload, frame length
+// payload: material names used in the frame, record count, then records of
+//   packed world position, op, old and new material as index into the names
+// the trailing frame length lets ChangeLogReader walk the log backwards
+public class ChangeLogWriter implements AutoCloseable {
+    static final int MAGIC = 0x4844434c;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 8;
+    static final int FLAG_DEFLATED = 1;
+    static final int NO_MATERIAL = 0xffff;
+    public static final byte OP_SET = 1;
+    private static final int FRAME_RECORDS = 4096;
+    private static final Material[] MATERIALS = Material.values();
+    private final ConcurrentLinkedQueue<long[]> queue = new ConcurrentLinkedQueue<>();
+    private final FileChannel channel;
+    private final DataOutputStream out;
+    private final boolean compress;
+    private final Thread thread;
+    // only touched by the writer thread, kept between drains to not reallocate the name table every second
+    private final Frame frame = new Frame();
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    public ChangeLogWriter(Path path, boolean compress) throws IOException {
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // drop a frame that was cut off by a crash, then continue behind the last complete one
+        long end = ChangeLogReader.validLength(channel);
+        channel.truncate(end);
+        channel.position(end);
+        this.out = new DataOutputStream(Channels.newOutputStream(channel));
+        if (end == 0) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+        this.compress = compress;
+        this.thread = new Thread(this::run, "HideDebris change log " + path.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static long packPosition(int x, int y, int z) {
+        return ((long) x & 0x3ffffff) << 38 | ((long) z & 0x3ffffff) << 12 | y & 0xfff;
+    }
+
+    // positions of the edits are relative to the chunk, no-op edits are left out
+    public void append(int chunkX, int chunkZ, ChunkEdits edits) {
+        long[] batch = new long[edits.size() * 2];
+        int size = 0;
+        for (int i = 0; i < edits.size(); i++) {
+            if (edits.expected(i) == edits.updated(i)) {
+                continue;
+            }
+            batch[size++] = packPosition(chunkX * 16 + edits.x(i), edits.y(i), chunkZ * 16 + edits.z(i));
+            batch[size++] = (long) OP_SET << 32 | (long) ordinal(edits.expected(i)) << 16 | ordinal(edits.updated(i));
+        }
+        if (size == 0) {
+            return;
+        }
+        // picked up by the writer within a second, waking it per chunk would only produce tiny frames
+        queue.offer(size == batch.length ? batch : Arrays.copyOf(batch, size));
+    }
+
+    private static int ordinal(Material material) {
+        return material == null ? NO_MATERIAL : material.ordinal();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                // read before draining, so every batch enqueued before close is written
+                boolean done = closed;
+                drain();
+                if (done) {
+                    return;
+                }
+                LockSupport.parkNanos(this, 1_000_000_000L);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private void drain() throws IOException {
+        if (queue.isEmpty()) {
+            return;
+        }
+        long[] batch;
+        while ((batch = queue.poll()) != null) {
+            for (int i = 0; i < batch.length; i += 2) {
+                frame.add(batch[i], batch[i + 1]);
+            }
+            if (frame.size >= FRAME_RECORDS) {
+                writeFrame(frame);
+                frame.clear();
+            }
+        }
+        if (frame.size > 0) {
+            writeFrame(frame);
+            frame.clear();
+        }
+        out.flush();
+    }
+
+    private void writeFrame(Frame frame) throws IOException {
+        var bytes = new ByteArrayOutputStream(frame.size * 13 + 256);
+        try (var payload = new DataOutputStream(compress ? new DeflaterOutputStream(bytes) : bytes)) {
+            payload.writeShort(frame.names.size());
+            for (String name : frame.names) {
+                payload.writeUTF(name);
+            }
+            payload.writeInt(frame.size);
+            payload.write(frame.records, 0, frame.size * 13);
+        }
+        out.writeByte(compress ? FLAG_DEFLATED : 0);
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+        out.writeInt(1 + 4 + bytes.size() + 4);
+    }
+
+    // flushes everything enqueued so far and stops the writer thread
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        out.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // records of one frame, materials are renumbered into a per frame name table
+    private static class Frame {
+        private final List<String> names = new ArrayList<>();
+        private final int[] nameIndex = new int[NO_MATERIAL + 1];
+        // ordinal of each name, to reset only the used entries of nameIndex
+        private int[] ordinals = new int[64];
+        private byte[] records = new byte[1024 * 13];
+        private int size;
+
+        private Frame() {
+            Arrays.fill(nameIndex, -1);
+        }
+
+        private void clear() {
+            for (int i = 0; i < names.size(); i++) {
+                nameIndex[ordinals[i]] = -1;
+            }
+            names.clear();
+            size = 0;
+        }
+
+        private void add(long position, long data) {
+            if ((size + 1) * 13 > records.length) {
+                records = Arrays.copyOf(records, records.length * 2);
+            }
+            var buf = ByteBuffer.wrap(records, size * 13, 13);
+            buf.putLong(position);
+            buf.put((byte) (data >>> 32));
+            buf.putShort((short) index((int) (data >>> 16 & 0xffff)));
+            buf.putShort((short) index((int) (data & 0xffff)));
+            size++;
+        }
+
+        private int index(int ordinal) {
+            if (nameIndex[ordinal] < 0) {
+                if (names.size() == ordinals.length) {
+                    ordinals = Arrays.copyOf(ordinals, ordinals.length * 2);
+                }
+                ordinals[names.size()] = ordinal;
+                nameIndex[ordinal] = names.size();
+                names.add(ordinal == NO_MATERIAL ? "" : MATERIALS[ordinal].getKey().toString());
+            }
+            return nameIndex[ordinal];
+        }
+    }
+}
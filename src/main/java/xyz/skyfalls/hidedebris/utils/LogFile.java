@@ -9,9 +9,6 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 public class LogFile {
     private final WritableByteChannel outChannel;
@@ -29,22 +26,6 @@ public class LogFile {
         this.outChannel.write(buf);
     }
 
-    public void logChunkPushed(Vec2i chunk, HashMap<Vec3i, Boolean> debris) throws IOException {
-        for (Map.Entry<Vec3i, Boolean> e : debris.entrySet()) {
-            if (e.getValue()) {
-                var pos = e.getKey();
-                log("push %d, %d, %d", chunk.x() * 16 + pos.x(), pos.y(), chunk.z() * 16 + pos.z());
-            }
-        }
-
-    }
-
-    public void logChunkHidden(Vec2i chunk, List<Vec3i> debris) throws IOException {
-        for (Vec3i e : debris) {
-            log("hide %d, %d, %d", chunk.x() * 16 + e.x(), e.y(), chunk.z() * 16 + e.z());
-        }
-    }
-
     public void flushAndClose() throws IOException {
         this.outChannel.close();
     }
@@ -3,31 +3,116 @@ package xyz.skyfalls.hidedebris.utils;
 import org.bukkit.World;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.List;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public class RegionUtils {
-    private final static Pattern MCA_PATTERN = Pattern.compile("^r\\.(-?\\d+)\\.(-?\\d+).mca");
+    private final static Pattern MCA_PATTERN = Pattern.compile("^r\\.(-?\\d+)\\.(-?\\d+)\\.mca$");
+    // local chunk indices (localZ * 32 + localX) of a region along a hilbert curve, consecutive chunks are adjacent
+    private final static int[] CHUNK_ORDER = IntStream.range(0, 32 * 32).boxed()
+            .sorted(Comparator.comparingLong(i -> hilbertIndex(5, i % 32, i / 32)))
+            .mapToInt(Integer::intValue).toArray();
 
     public static Stream<Vec2i> getChunksInRegion(Vec2i region) {
         return IntStream.range(0, 32 * 32)
                 .mapToObj(i -> new Vec2i(region.x() * 32 + i / 32, region.y() * 32 + i % 32));
     }
 
+    // only the chunks that have an entry in the region file, along the hilbert curve
+    public static Stream<Vec2i> getChunksInRegion(Vec2i region, BitSet present) {
+        return Arrays.stream(CHUNK_ORDER).filter(present::get)
+                .mapToObj(i -> new Vec2i(region.x() * 32 + i % 32, region.z() * 32 + i / 32));
+    }
+
+    // distance of (x, z) along a hilbert curve filling the 2^order square, neighbours on the curve are neighbours
+    // in space and most neighbours in space are close on the curve
+    public static long hilbertIndex(int order, int x, int z) {
+        int n = 1 << order;
+        long d = 0;
+        for (int s = n >> 1; s > 0; s >>= 1) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int rz = (z & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ rz);
+            if (rz == 0) {
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    z = n - 1 - z;
+                }
+                int t = x;
+                x = z;
+                z = t;
+            }
+        }
+        return d;
+    }
+
+    // orders regions along a hilbert curve over their bounding square, so regions sharing a border are mostly
+    // processed close together and the chunks along it don't have to be loaded twice
+    public static List<Vec2i> sortAlongCurve(List<Vec2i> regions) {
+        if (regions.isEmpty()) {
+            return regions;
+        }
+        int minX = regions.stream().mapToInt(Vec2i::x).min().getAsInt();
+        int minZ = regions.stream().mapToInt(Vec2i::z).min().getAsInt();
+        int maxX = regions.stream().mapToInt(Vec2i::x).max().getAsInt();
+        int maxZ = regions.stream().mapToInt(Vec2i::z).max().getAsInt();
+        int extent = Math.max(maxX - minX, maxZ - minZ) + 1;
+        int order = Math.max(1, 32 - Integer.numberOfLeadingZeros(extent - 1));
+        return regions.stream()
+                .sorted(Comparator.comparingLong(e -> hilbertIndex(order, e.x() - minX, e.z() - minZ)))
+                .toList();
+    }
+
+    // reads the location table of a region file, bit localZ * 32 + localX is set for every chunk stored in it
+    public static BitSet getPresentChunks(Path regionFile) throws IOException {
+        var present = new BitSet(32 * 32);
+        if (!Files.exists(regionFile)) {
+            return present;
+        }
+        try (var channel = FileChannel.open(regionFile, StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(32 * 32 * 4);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+            }
+            header.flip();
+            for (int i = 0; i < header.limit() / 4; i++) {
+                if (header.getInt(i * 4) != 0) {
+                    present.set(i);
+                }
+            }
+        }
+        return present;
+    }
+
+    public static Path getRegionFolder(Path worldFolder) {
+        return worldFolder.resolve("DIM-1/region");
+    }
+
+    public static Path getRegionFile(Path regionFolder, Vec2i region) {
+        return regionFolder.resolve("r.%d.%d.mca".formatted(region.x(), region.z()));
+    }
+
     public static List<Vec2i> getRegions(World world) throws IOException {
-        var folder = world.getWorldFolder().toPath().resolve("DIM-1/region");
+        return getRegions(getRegionFolder(world.getWorldFolder().toPath()));
+    }
+
+    // in hilbert order, other files such as the .tmp of an interrupted save or .mcc files are skipped
+    public static List<Vec2i> getRegions(Path folder) throws IOException {
         try (var list = Files.list(folder)) {
-            return list.map(e -> {
-                var matcher = MCA_PATTERN.matcher(e.getFileName().toString());
-                if (matcher.find()) {
-                    return Vec2i.fromStrings(matcher.group(1), matcher.group(2));
-                } else {
-                    throw new IllegalArgumentException("Unexpected file in region folder " + e);
-                }
-            }).toList();
+            return sortAlongCurve(list.map(e -> MCA_PATTERN.matcher(e.getFileName().toString()))
+                    .filter(Matcher::matches)
+                    .map(e -> Vec2i.fromStrings(e.group(1), e.group(2)))
+                    .toList());
         }
     }
 }
@@ -1,4 +0,0 @@
-package xyz.skyfalls.hidedebris.utils;
-
-public record Tuple3<T, U, V>(T a, U b, V c) {
-}